@@ -0,0 +1,158 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.hibernate.event.EventListeners;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.core.Registry.Key;
+import de.cosmocode.palava.jmx.MBeanService;
+
+/**
+ * Creates {@link DefaultHibernateService}s backed by an in-memory H2 database,
+ * without a palava container. The registry knows Hibernate's default listeners
+ * and a {@link CountingListener}, mirroring the listeners of the config file, so 
+ * sessions behave the same with and without event propagation.
+ *
+ * @author Willi Schoenborn
+ */
+final class BenchmarkEnvironment {
+
+    private final File config;
+    
+    private final DefaultHibernateService service;
+    
+    private final CountingListener listener = new CountingListener();
+    
+    private final ListMultimap<String, Object> listeners = ArrayListMultimap.create();
+    
+    private BenchmarkEnvironment(boolean propagateEvents, Integer batchSize) throws IOException {
+        config = File.createTempFile("hibernate", ".cfg.xml");
+        Files.copy(Resources.newInputStreamSupplier(resource("hibernate.cfg.xml")), config);
+        
+        final EventListeners defaults = new EventListeners();
+        put("auto-flush", defaults.getAutoFlushEventListeners());
+        put("merge", defaults.getMergeEventListeners());
+        put("create", defaults.getPersistEventListeners());
+        put("create-onflush", defaults.getPersistOnFlushEventListeners());
+        put("delete", defaults.getDeleteEventListeners());
+        put("dirty-check", defaults.getDirtyCheckEventListeners());
+        put("evict", defaults.getEvictEventListeners());
+        put("flush", defaults.getFlushEventListeners());
+        put("flush-entity", defaults.getFlushEntityEventListeners());
+        put("load", defaults.getLoadEventListeners());
+        put("load-collection", defaults.getInitializeCollectionEventListeners());
+        put("lock", defaults.getLockEventListeners());
+        put("refresh", defaults.getRefreshEventListeners());
+        put("replicate", defaults.getReplicateEventListeners());
+        put("save-update", defaults.getSaveOrUpdateEventListeners());
+        put("save", defaults.getSaveEventListeners());
+        put("update", defaults.getUpdateEventListeners());
+        put("pre-load", defaults.getPreLoadEventListeners());
+        put("post-load", defaults.getPostLoadEventListeners());
+        listeners.put("pre-update", listener);
+        listeners.put("post-update", listener);
+        
+        service = new DefaultHibernateService(config, resource("Item.hbm.xml"), newRegistry(), newMBeanService());
+        service.setPropagateEvents(propagateEvents);
+        if (batchSize != null) {
+            service.setBatchSize(batchSize);
+        }
+        service.initialize();
+    }
+    
+    /**
+     * Starts a new environment.
+     * 
+     * @param propagateEvents whether events are propagated through the registry
+     * @param batchSize the JDBC batch size, null for Hibernate's default
+     * @return a new, initialized environment
+     * @throws IOException if the config file could not be written
+     */
+    public static BenchmarkEnvironment start(boolean propagateEvents, Integer batchSize) throws IOException {
+        return new BenchmarkEnvironment(propagateEvents, batchSize);
+    }
+    
+    private static URL resource(String name) {
+        return Resources.getResource(BenchmarkEnvironment.class, name);
+    }
+    
+    private void put(String event, Object[] chain) {
+        listeners.putAll(event, Arrays.asList(chain));
+    }
+    
+    private Registry newRegistry() {
+        return Registry.class.cast(Proxy.newProxyInstance(getClass().getClassLoader(), 
+            new Class<?>[] {Registry.class}, new InvocationHandler() {
+            
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    // the event listener binder only looks up listeners
+                    Preconditions.checkState("getListeners".equals(method.getName()) && args[0] instanceof Key<?>,
+                        "%s is not supported", method);
+                    return listeners.get(String.valueOf(Key.class.cast(args[0]).getMeta()));
+                }
+                
+            }));
+    }
+    
+    private MBeanService newMBeanService() {
+        return MBeanService.class.cast(Proxy.newProxyInstance(getClass().getClassLoader(), 
+            new Class<?>[] {MBeanService.class}, new InvocationHandler() {
+                
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+                
+            }));
+    }
+    
+    public DefaultHibernateService getService() {
+        return service;
+    }
+    
+    public CountingListener getListener() {
+        return listener;
+    }
+    
+    /**
+     * Disposes the service and drops the database.
+     */
+    public void stop() {
+        try {
+            service.dispose();
+        } finally {
+            if (!config.delete()) config.deleteOnExit();
+        }
+    }
+    
+}
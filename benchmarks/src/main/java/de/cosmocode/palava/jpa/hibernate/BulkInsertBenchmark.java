@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * Measures the insert throughput of {@link DefaultHibernateService#persistAll(Iterable)}
+ * for different JDBC batch sizes. Scores are rows per second, including the
+ * creation of the entities, which is negligible compared to inserting them.
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BulkInsertBenchmark {
+
+    private static final int ROWS = 1000;
+    
+    @Param({"1", "50"})
+    private int batchSize;
+    
+    private BenchmarkEnvironment environment;
+    
+    @Setup
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.start(false, batchSize);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public BulkWriteResult persistAll() {
+        final List<Item> items = Lists.newArrayListWithCapacity(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            items.add(new Item("item-" + i));
+        }
+        return environment.getService().persistAll(items);
+    }
+    
+    /**
+     * Keeps the table from growing across iterations.
+     */
+    @TearDown(Level.Iteration)
+    public void truncate() {
+        final Session session = environment.getService().get();
+        try {
+            session.beginTransaction();
+            session.createQuery("delete from Item").executeUpdate();
+            session.getTransaction().commit();
+        } finally {
+            Destroyable.class.cast(session).destroy();
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+    
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.event.PreUpdateEvent;
+import org.hibernate.event.PreUpdateEventListener;
+
+/**
+ * A cheap update listener, so flush benchmarks measure the cost of dispatching
+ * rather than the cost of the listener itself.
+ *
+ * @author Willi Schoenborn
+ */
+public final class CountingListener implements PreUpdateEventListener, PostUpdateEventListener {
+
+    private static final long serialVersionUID = 4128775419520478136L;
+    
+    private long count;
+    
+    @Override
+    public boolean onPreUpdate(PreUpdateEvent event) {
+        count++;
+        return false;
+    }
+    
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        count++;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * Measures flushing a number of dirty entities with {@code hibernate.events.propagate}
+ * on and off. With propagation the listener chains are resolved from the registry,
+ * without it they come from the config file. Both contain the same listeners.
+ * <p>
+ *   A single flush is too short for per-invocation setup, so every operation opens a session,
+ *   modifies all rows and rolls back. {@link #baseline()} does the same without flushing,
+ *   the cost of a flush is the difference between {@link #flush()} and {@link #baseline()}.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FlushBenchmark {
+
+    @Param({"false", "true"})
+    private boolean propagateEvents;
+    
+    @Param({"100"})
+    private int rows;
+    
+    private BenchmarkEnvironment environment;
+    
+    @Setup
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.start(propagateEvents, null);
+        final List<Item> items = Lists.newArrayListWithCapacity(rows);
+        for (int i = 0; i < rows; i++) {
+            items.add(new Item("item-" + i));
+        }
+        environment.getService().persistAll(items);
+    }
+    
+    @Benchmark
+    public void baseline() {
+        modify(false);
+    }
+    
+    @Benchmark
+    public void flush() {
+        modify(true);
+    }
+    
+    /**
+     * Loads and modifies all rows, the modifications are rolled back.
+     * 
+     * @param flush whether to flush before rolling back
+     */
+    private void modify(boolean flush) {
+        final Session session = environment.getService().get();
+        try {
+            final Transaction transaction = session.beginTransaction();
+            for (Object row : session.createQuery("from Item").list()) {
+                final Item item = Item.class.cast(row);
+                item.setCounter(item.getCounter() + 1);
+            }
+            if (flush) {
+                session.flush();
+            }
+            transaction.rollback();
+        } finally {
+            Destroyable.class.cast(session).destroy();
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+    
+}
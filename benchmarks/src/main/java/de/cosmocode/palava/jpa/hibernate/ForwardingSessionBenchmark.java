@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per call cost of the {@link ForwardingSession} indirection, by calling
+ * cheap methods on a plain session, on a {@link DestroyableSession} and on a
+ * {@link DestroyableSession} decorated once more.
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ForwardingSessionBenchmark {
+
+    private BenchmarkEnvironment environment;
+    
+    private Session plain;
+    
+    private DestroyableSession destroyable;
+    
+    private Session decorated;
+    
+    private Item item;
+    
+    @Setup
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.start(false, null);
+        plain = environment.getService().getSessionFactory().openSession();
+        destroyable = new DestroyableSession(environment.getService().getSessionFactory());
+        decorated = new ForwardingSession() {
+            
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected Session delegate() {
+                return destroyable;
+            }
+            
+        };
+        item = new Item("item");
+    }
+    
+    @TearDown
+    public void tearDown() {
+        plain.close();
+        destroyable.destroy();
+        environment.stop();
+    }
+    
+    @Benchmark
+    public FlushMode plainFlushMode() {
+        return plain.getFlushMode();
+    }
+    
+    @Benchmark
+    public FlushMode destroyableFlushMode() {
+        return destroyable.getFlushMode();
+    }
+    
+    @Benchmark
+    public FlushMode decoratedFlushMode() {
+        return decorated.getFlushMode();
+    }
+    
+    @Benchmark
+    public boolean plainContains() {
+        return plain.contains(item);
+    }
+    
+    @Benchmark
+    public boolean destroyableContains() {
+        return destroyable.contains(item);
+    }
+    
+    @Benchmark
+    public boolean decoratedContains() {
+        return decorated.contains(item);
+    }
+    
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * A minimal entity used by the benchmarks.
+ *
+ * @author Willi Schoenborn
+ */
+public class Item {
+
+    private Long id;
+    
+    private String name;
+    
+    private int counter;
+    
+    public Item() {
+        
+    }
+    
+    public Item(String name) {
+        this.name = name;
+    }
+    
+    public Long getId() {
+        return id;
+    }
+    
+    public void setId(Long id) {
+        this.id = id;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    public int getCounter() {
+        return counter;
+    }
+    
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+    
+}
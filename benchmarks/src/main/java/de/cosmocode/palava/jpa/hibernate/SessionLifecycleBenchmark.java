@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * Measures {@link DefaultHibernateService#get()} followed by {@link Destroyable#destroy()},
+ * i.e. the per request overhead of a session, with and without actually opening it.
+ *
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SessionLifecycleBenchmark {
+
+    private BenchmarkEnvironment environment;
+    
+    private DefaultHibernateService service;
+    
+    @Setup
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.start(false, null);
+        service = environment.getService();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        environment.stop();
+    }
+    
+    /**
+     * A request which never touches its session.
+     * 
+     * @return the session
+     */
+    @Benchmark
+    public Session unused() {
+        final Session session = service.get();
+        Destroyable.class.cast(session).destroy();
+        return session;
+    }
+    
+    /**
+     * A request which opens its session, without acquiring a connection.
+     * 
+     * @return the session
+     */
+    @Benchmark
+    public Session opened() {
+        final Session session = service.get();
+        session.getFlushMode();
+        Destroyable.class.cast(session).destroy();
+        return session;
+    }
+    
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Delivers post-commit events to their listeners on a pool of worker threads, so slow
+ * listeners don't add to the commit latency. Every event is reduced to a snapshot of entity name,
+ * id, persister and copies of its state arrays, and queued on one of several bounded queues,
+ * chosen by entity name and id. Events of the same entity are therefore delivered by the same
+ * worker, in commit order, unless {@link OverflowPolicy#CALLER_RUNS} lets the committing thread
+ * deliver an event itself. Workers drain their queue in batches.
+ * <p>
+ *   Listeners receive events without entity and session, neither may be used outside of the
+ *   committing thread. Collections in the state arrays are replaced by null, they are bound to
+ *   the session. Associated entities are the session's instances, only their ids should be used.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class AsyncEventDispatcher implements PostInsertEventListener, PostUpdateEventListener, 
+    PostDeleteEventListener, AsyncEventDispatcherMBean {
+
+    public static final ImmutableSet<String> EVENTS = ImmutableSet.of(
+        "post-commit-insert", "post-commit-update", "post-commit-delete"
+    );
+    
+    private static final long serialVersionUID = -2193820366839452287L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncEventDispatcher.class);
+    
+    private static final long POLL_INTERVAL = 100L;
+    
+    private final int capacity;
+    
+    private final int batchSize;
+    
+    private final OverflowPolicy policy;
+    
+    private final List<BlockingQueue<Task>> queues;
+    
+    private final ExecutorService workers;
+    
+    private final AtomicInteger maxQueueSize = new AtomicInteger();
+    
+    private final StripedCounter queued = new StripedCounter();
+    
+    private final StripedCounter delivered = new StripedCounter();
+    
+    private final StripedCounter callerRuns = new StripedCounter();
+    
+    private final StripedCounter dropped = new StripedCounter();
+    
+    private final StripedCounter failures = new StripedCounter();
+    
+    private final StripedCounter batches = new StripedCounter();
+    
+    private final StripedCounter delays = new StripedCounter();
+    
+    private final StripedCounter delayed = new StripedCounter();
+    
+    private volatile PostInsertEventListener[] insertListeners = {};
+    
+    private volatile PostUpdateEventListener[] updateListeners = {};
+    
+    private volatile PostDeleteEventListener[] deleteListeners = {};
+    
+    private volatile boolean closed;
+    
+    /**
+     * Creates a new {@link AsyncEventDispatcher} and starts its workers.
+     * 
+     * @param workers the number of worker threads
+     * @param capacity the maximum number of queued events, split evenly across workers
+     * @param batchSize the maximum number of events a worker drains at once
+     * @param policy what to do when a queue is full
+     */
+    public AsyncEventDispatcher(int workers, int capacity, int batchSize, OverflowPolicy policy) {
+        Preconditions.checkArgument(workers > 0, "Workers must be positive");
+        Preconditions.checkArgument(capacity >= workers, "Capacity must not be less than workers");
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive");
+        this.policy = Preconditions.checkNotNull(policy, "Policy");
+        this.capacity = capacity / workers * workers;
+        this.batchSize = batchSize;
+        
+        final ImmutableList.Builder<BlockingQueue<Task>> builder = ImmutableList.builder();
+        for (int i = 0; i < workers; i++) {
+            builder.add(new ArrayBlockingQueue<Task>(capacity / workers));
+        }
+        this.queues = builder.build();
+        
+        this.workers = Executors.newFixedThreadPool(workers, 
+            new ThreadFactoryBuilder().setNameFormat("hibernate-events-%d").setDaemon(true).build()
+        );
+        for (BlockingQueue<Task> queue : queues) {
+            this.workers.execute(new Worker(queue));
+        }
+    }
+    
+    /**
+     * Sets the listeners of one of the {@link #EVENTS}.
+     * 
+     * @param event the event
+     * @param listeners the listeners, in order
+     * @throws IllegalArgumentException if event is not supported
+     */
+    public void setListeners(String event, List<?> listeners) {
+        Preconditions.checkNotNull(listeners, "Listeners");
+        if ("post-commit-insert".equals(event)) {
+            insertListeners = listeners.toArray(new PostInsertEventListener[listeners.size()]);
+        } else if ("post-commit-update".equals(event)) {
+            updateListeners = listeners.toArray(new PostUpdateEventListener[listeners.size()]);
+        } else if ("post-commit-delete".equals(event)) {
+            deleteListeners = listeners.toArray(new PostDeleteEventListener[listeners.size()]);
+        } else {
+            throw new IllegalArgumentException(String.format("Unsupported event %s", event));
+        }
+    }
+    
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        final EntityPersister persister = event.getPersister();
+        submit(new Insert(persister, event.getId(), copyOf(persister, event.getState())));
+    }
+    
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        final EntityPersister persister = event.getPersister();
+        submit(new Update(persister, event.getId(), copyOf(persister, event.getState()), 
+            copyOf(persister, event.getOldState())));
+    }
+    
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        final EntityPersister persister = event.getPersister();
+        submit(new Delete(persister, event.getId(), copyOf(persister, event.getDeletedState())));
+    }
+    
+    private static Object[] copyOf(EntityPersister persister, Object[] state) {
+        if (state == null) return null;
+        final Object[] copy = state.clone();
+        final Type[] types = persister.getPropertyTypes();
+        for (int i = 0; i < copy.length && i < types.length; i++) {
+            if (types[i].isCollectionType()) {
+                copy[i] = null;
+            }
+        }
+        return copy;
+    }
+    
+    private void submit(Task task) {
+        if (closed) {
+            callerRuns(task);
+            return;
+        }
+        final BlockingQueue<Task> queue = queues.get(task.partition(queues.size()));
+        switch (policy) {
+            case BLOCK: {
+                put(queue, task);
+                break;
+            }
+            case DROP: {
+                if (!queue.offer(task)) {
+                    dropped.increment();
+                    LOG.debug("Queue full, dropping {}", task);
+                    return;
+                }
+                break;
+            }
+            case CALLER_RUNS: {
+                if (!queue.offer(task)) {
+                    callerRuns(task);
+                    return;
+                }
+                break;
+            }
+            default: {
+                throw new AssertionError("Unknown policy " + policy);
+            }
+        }
+        queued.increment();
+        final int size = getQueueSize();
+        while (true) {
+            final int max = maxQueueSize.get();
+            if (size <= max || maxQueueSize.compareAndSet(max, size)) break;
+        }
+    }
+    
+    private static void put(BlockingQueue<Task> queue, Task task) {
+        // delivering on the caller would overtake queued events of the same entity
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(task);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void callerRuns(Task task) {
+        callerRuns.increment();
+        task.deliver();
+        delivered.increment();
+    }
+    
+    /**
+     * Drains a single queue.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class Worker implements Runnable {
+        
+        private final BlockingQueue<Task> queue;
+        
+        public Worker(BlockingQueue<Task> queue) {
+            this.queue = queue;
+        }
+        
+        @Override
+        public void run() {
+            final List<Task> batch = Lists.newArrayListWithCapacity(batchSize);
+            while (true) {
+                final Task first;
+                try {
+                    first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (first == null) {
+                    if (closed) return;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                batches.increment();
+                final long now = System.nanoTime();
+                for (Task task : batch) {
+                    delays.add(now - task.queued);
+                    task.deliver();
+                }
+                delayed.add(batch.size());
+                delivered.add(batch.size());
+                batch.clear();
+            }
+        }
+        
+    }
+    
+    /**
+     * A queued snapshot of an event.
+     *
+     * @author Willi Schoenborn
+     */
+    private abstract class Task {
+        
+        private final long queued = System.nanoTime();
+        
+        protected final EntityPersister persister;
+        
+        protected final Serializable id;
+        
+        protected final Object[] state;
+        
+        public Task(EntityPersister persister, Serializable id, Object[] state) {
+            this.persister = persister;
+            this.id = id;
+            this.state = state;
+        }
+        
+        public int partition(int partitions) {
+            final int hash = persister.getEntityName().hashCode() * 31 + (id == null ? 0 : id.hashCode());
+            return (hash & Integer.MAX_VALUE) % partitions;
+        }
+        
+        public abstract void deliver();
+        
+        protected final void failed(Object listener, RuntimeException e) {
+            failures.increment();
+            LOG.error(String.format("%s failed on %s", listener, this), e);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s#%s(%s)", getClass().getSimpleName(), persister.getEntityName(), id);
+        }
+        
+    }
+    
+    /**
+     * A queued post-commit insert event.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class Insert extends Task {
+        
+        public Insert(EntityPersister persister, Serializable id, Object[] state) {
+            super(persister, id, state);
+        }
+        
+        @Override
+        public void deliver() {
+            final PostInsertEvent event = new PostInsertEvent(null, id, state, persister, null);
+            for (PostInsertEventListener listener : insertListeners) {
+                try {
+                    listener.onPostInsert(event);
+                } catch (RuntimeException e) {
+                    failed(listener, e);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * A queued post-commit update event.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class Update extends Task {
+        
+        private final Object[] oldState;
+        
+        public Update(EntityPersister persister, Serializable id, Object[] state, Object[] oldState) {
+            super(persister, id, state);
+            this.oldState = oldState;
+        }
+        
+        @Override
+        public void deliver() {
+            final PostUpdateEvent event = new PostUpdateEvent(null, id, state, oldState, persister, null);
+            for (PostUpdateEventListener listener : updateListeners) {
+                try {
+                    listener.onPostUpdate(event);
+                } catch (RuntimeException e) {
+                    failed(listener, e);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * A queued post-commit delete event.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class Delete extends Task {
+        
+        public Delete(EntityPersister persister, Serializable id, Object[] deletedState) {
+            super(persister, id, deletedState);
+        }
+        
+        @Override
+        public void deliver() {
+            final PostDeleteEvent event = new PostDeleteEvent(null, id, state, persister, null);
+            for (PostDeleteEventListener listener : deleteListeners) {
+                try {
+                    listener.onPostDelete(event);
+                } catch (RuntimeException e) {
+                    failed(listener, e);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * Stops accepting events and waits for the workers to deliver all queued events.
+     * Events submitted afterwards are delivered by the committing thread.
+     * 
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     */
+    public void close(long timeout, TimeUnit unit) {
+        closed = true;
+        workers.shutdown();
+        try {
+            if (workers.awaitTermination(timeout, unit)) {
+                // events queued while closing
+                for (BlockingQueue<Task> queue : queues) {
+                    for (Task task = queue.poll(); task != null; task = queue.poll()) {
+                        callerRuns(task);
+                    }
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        LOG.warn("Discarding {} undelivered post-commit events", getQueueSize());
+    }
+    
+    @Override
+    public int getWorkers() {
+        return queues.size();
+    }
+    
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    @Override
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<Task> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+    
+    @Override
+    public int getMaxQueueSize() {
+        return maxQueueSize.get();
+    }
+    
+    @Override
+    public String getOverflowPolicy() {
+        return policy.name();
+    }
+    
+    @Override
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+    
+    @Override
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+    
+    @Override
+    public long getCallerRunsCount() {
+        return callerRuns.sum();
+    }
+    
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    @Override
+    public long getFailureCount() {
+        return failures.sum();
+    }
+    
+    @Override
+    public long getBatchCount() {
+        return batches.sum();
+    }
+    
+    @Override
+    public double getAverageDelay() {
+        final long count = delayed.sum();
+        return count == 0L ? 0d : delays.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+    
+    @Override
+    public void clear() {
+        maxQueueSize.set(0);
+        queued.reset();
+        delivered.reset();
+        callerRuns.reset();
+        dropped.reset();
+        failures.reset();
+        batches.reset();
+        delays.reset();
+        delayed.reset();
+    }
+    
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link AsyncEventDispatcher}.
+ *
+ * @author Willi Schoenborn
+ */
+public interface AsyncEventDispatcherMBean {
+
+    /**
+     * Provides the number of worker threads.
+     * 
+     * @return the number of workers
+     */
+    int getWorkers();
+    
+    /**
+     * Provides the maximum number of queued events, summed up over all workers.
+     * 
+     * @return the capacity
+     */
+    int getCapacity();
+    
+    /**
+     * Provides the current number of queued events.
+     * 
+     * @return the queue depth
+     */
+    int getQueueSize();
+    
+    /**
+     * Provides the highest number of queued events observed by a committing thread.
+     * 
+     * @return the maximum queue depth
+     */
+    int getMaxQueueSize();
+    
+    /**
+     * Provides the name of the policy applied when the queue is full.
+     * 
+     * @return the overflow policy
+     */
+    String getOverflowPolicy();
+    
+    /**
+     * Provides the number of events which have been queued.
+     * 
+     * @return the number of queued events
+     */
+    long getQueuedCount();
+    
+    /**
+     * Provides the number of events which have been delivered to the listeners,
+     * asynchronously or by the committing thread.
+     * 
+     * @return the number of delivered events
+     */
+    long getDeliveredCount();
+    
+    /**
+     * Provides the number of events which have been delivered by the committing
+     * thread because the queue was full or the dispatcher was closed.
+     * 
+     * @return the number of events delivered synchronously
+     */
+    long getCallerRunsCount();
+    
+    /**
+     * Provides the number of events which have been dropped because the queue was full.
+     * 
+     * @return the number of dropped events
+     */
+    long getDroppedCount();
+    
+    /**
+     * Provides the number of listener invocations which failed.
+     * 
+     * @return the number of failures
+     */
+    long getFailureCount();
+    
+    /**
+     * Provides the number of batches drained by the workers.
+     * 
+     * @return the number of batches
+     */
+    long getBatchCount();
+    
+    /**
+     * Provides the average time between queueing and delivering an event.
+     * 
+     * @return the average delay in milliseconds
+     */
+    double getAverageDelay();
+    
+    /**
+     * Resets all counters and the maximum queue depth.
+     */
+    void clear();
+    
+}
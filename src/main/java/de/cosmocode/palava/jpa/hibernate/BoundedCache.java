@@ -0,0 +1,326 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.Timestamper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * A bounded, concurrent, in-heap {@link Cache} with optional time to live.
+ * Eviction is frequency-aware: entries are scanned in insertion order and
+ * every read increments a small, saturating frequency counter. Scanned entries
+ * with a positive frequency get a second chance with their frequency halved,
+ * so frequently read entries survive while one-hit wonders get evicted first.
+ * Every put scans a few entries to purge expired ones, even if the cache is unbounded.
+ * The work per put is capped, if second chances exhaust it, entries get evicted in
+ * insertion order.
+ * 
+ * <p>
+ *   Implements the deprecated {@link org.hibernate.cache.Cache} on purpose: the bridge adapters
+ *   used by {@link BoundedRegionFactory} are Hibernate's own region access strategies,
+ *   including the soft locks of read-write caching, for this version. The interface is
+ *   referenced by its qualified name because deprecated imports can't be suppressed.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+@SuppressWarnings("deprecation")
+final class BoundedCache implements org.hibernate.cache.Cache {
+
+    private static final int MAX_FREQUENCY = 15;
+    
+    // entries scanned per put to purge expired and replaced ones
+    private static final int PURGE_SCANS = 2;
+    
+    // entries scanned per put at most, before evicting without a second chance
+    private static final int MAX_SCANS = 32;
+    
+    private static final int TIMEOUT = Timestamper.ONE_MS * 60000;
+    
+    private final String region;
+    
+    private final int maxSize;
+    
+    private final long ttl;
+    
+    private final ConcurrentMap<Object, Element> elements = new ConcurrentHashMap<Object, Element>();
+    
+    private final AtomicInteger size = new AtomicInteger();
+    
+    // stale once the key has been removed or replaced, see isCurrent(Element)
+    private final Queue<Element> order = new ConcurrentLinkedQueue<Element>();
+    
+    private final StripedCounter hits = new StripedCounter();
+    
+    private final StripedCounter misses = new StripedCounter();
+    
+    private final StripedCounter puts = new StripedCounter();
+    
+    private final StripedCounter evictions = new StripedCounter();
+    
+    private final StripedCounter expirations = new StripedCounter();
+    
+    /**
+     * Creates a new {@link BoundedCache}.
+     * 
+     * @param region the region name
+     * @param maxSize the maximum number of entries, 0 for no limit
+     * @param ttl the time to live of entries in nanoseconds, 0 for no limit
+     */
+    public BoundedCache(String region, int maxSize, long ttl) {
+        this.region = Preconditions.checkNotNull(region, "Region");
+        Preconditions.checkArgument(maxSize >= 0, "Max size must not be negative");
+        Preconditions.checkArgument(ttl >= 0, "Ttl must not be negative");
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+    
+    /**
+     * A cached value.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Element {
+        
+        private final Object key;
+        
+        private final Object value;
+        
+        private final long expires;
+        
+        // racy updates are fine, this is a heuristic
+        private volatile int frequency;
+        
+        public Element(Object key, Object value, long expires) {
+            this.key = key;
+            this.value = value;
+            this.expires = expires;
+        }
+        
+    }
+    
+    @Override
+    public Object read(Object key) throws CacheException {
+        return get(key);
+    }
+    
+    @Override
+    public Object get(Object key) throws CacheException {
+        final Element element = elements.get(key);
+        if (element == null) {
+            misses.increment();
+            return null;
+        } else if (isExpired(element)) {
+            if (elements.remove(key, element)) {
+                size.decrementAndGet();
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        } else {
+            final int frequency = element.frequency;
+            if (frequency < MAX_FREQUENCY) element.frequency = frequency + 1;
+            hits.increment();
+            return element.value;
+        }
+    }
+    
+    /**
+     * Checks whether the given key is cached, without counting a hit or miss.
+     * 
+     * @param key the key
+     * @return true if there is a non-expired entry for key
+     */
+    boolean contains(Object key) {
+        final Element element = elements.get(key);
+        return element != null && !isExpired(element);
+    }
+    
+    private boolean isExpired(Element element) {
+        return ttl > 0 && System.nanoTime() - element.expires > 0;
+    }
+    
+    @Override
+    public void put(Object key, Object value) throws CacheException {
+        final Element element = new Element(key, value, ttl > 0 ? System.nanoTime() + ttl : 0L);
+        final Element previous = elements.put(key, element);
+        puts.increment();
+        if (previous == null) size.incrementAndGet();
+        if (maxSize > 0 || ttl > 0) {
+            order.offer(element);
+            evictIfNecessary();
+        }
+    }
+    
+    private boolean isCurrent(Element element) {
+        return elements.get(element.key) == element;
+    }
+    
+    private boolean isFull() {
+        return maxSize > 0 && size.get() > maxSize;
+    }
+    
+    private void evictIfNecessary() {
+        int scans = 0;
+        while (scans < MAX_SCANS && (scans < PURGE_SCANS || isFull())) {
+            final Element element = order.poll();
+            if (element == null) return;
+            scans++;
+            
+            if (!isCurrent(element)) {
+                continue;
+            } else if (isExpired(element)) {
+                if (elements.remove(element.key, element)) {
+                    size.decrementAndGet();
+                    expirations.increment();
+                }
+            } else if (isFull() && element.frequency == 0) {
+                evict(element);
+            } else {
+                if (isFull()) element.frequency = element.frequency >> 1;
+                order.offer(element);
+            }
+        }
+        
+        while (isFull()) {
+            final Element element = order.poll();
+            if (element == null) return;
+            if (isCurrent(element)) evict(element);
+        }
+    }
+    
+    private void evict(Element element) {
+        if (elements.remove(element.key, element)) {
+            size.decrementAndGet();
+            evictions.increment();
+        }
+    }
+    
+    @Override
+    public void update(Object key, Object value) throws CacheException {
+        put(key, value);
+    }
+    
+    @Override
+    public void remove(Object key) throws CacheException {
+        if (elements.remove(key) != null) size.decrementAndGet();
+    }
+    
+    @Override
+    public void clear() throws CacheException {
+        elements.clear();
+        order.clear();
+        size.set(0);
+    }
+    
+    @Override
+    public void destroy() throws CacheException {
+        clear();
+    }
+    
+    @Override
+    public void lock(Object key) throws CacheException {
+        // local cache, nothing to do
+    }
+    
+    @Override
+    public void unlock(Object key) throws CacheException {
+        // local cache, nothing to do
+    }
+    
+    @Override
+    public long nextTimestamp() {
+        return Timestamper.next();
+    }
+    
+    @Override
+    public int getTimeout() {
+        return TIMEOUT;
+    }
+    
+    @Override
+    public String getRegionName() {
+        return region;
+    }
+    
+    @Override
+    public long getSizeInMemory() {
+        return -1L;
+    }
+    
+    @Override
+    public long getElementCountInMemory() {
+        return size.get();
+    }
+    
+    @Override
+    public long getElementCountOnDisk() {
+        return 0L;
+    }
+    
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map toMap() {
+        final Map<Object, Object> map = Maps.newHashMap();
+        for (Entry<Object, Element> entry : elements.entrySet()) {
+            if (isExpired(entry.getValue())) continue;
+            map.put(entry.getKey(), entry.getValue().value);
+        }
+        return map;
+    }
+    
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    public long getHitCount() {
+        return hits.sum();
+    }
+    
+    public long getMissCount() {
+        return misses.sum();
+    }
+    
+    public long getPutCount() {
+        return puts.sum();
+    }
+    
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+    
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return "BoundedCache(" + region + ")";
+    }
+    
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Ordering;
+
+/**
+ * Hit, miss, put, eviction and expiration metrics of all {@link BoundedCache}s
+ * built by a {@link BoundedRegionFactory}.
+ *
+ * @author Willi Schoenborn
+ */
+final class BoundedCacheStatistics implements BoundedCacheStatisticsMBean {
+
+    private final ConcurrentMap<String, BoundedCache> caches = new MapMaker().makeMap();
+    
+    void add(BoundedCache cache) {
+        caches.put(cache.getRegionName(), cache);
+    }
+    
+    void clear() {
+        caches.clear();
+    }
+    
+    @Override
+    public String[] getRegionNames() {
+        final List<String> names = Ordering.natural().sortedCopy(caches.keySet());
+        return names.toArray(new String[names.size()]);
+    }
+    
+    @Override
+    public long getHitCount(String region) {
+        final BoundedCache cache = caches.get(region);
+        return cache == null ? 0L : cache.getHitCount();
+    }
+    
+    @Override
+    public long getMissCount(String region) {
+        final BoundedCache cache = caches.get(region);
+        return cache == null ? 0L : cache.getMissCount();
+    }
+    
+    @Override
+    public long getPutCount(String region) {
+        final BoundedCache cache = caches.get(region);
+        return cache == null ? 0L : cache.getPutCount();
+    }
+    
+    @Override
+    public long getEvictionCount(String region) {
+        final BoundedCache cache = caches.get(region);
+        return cache == null ? 0L : cache.getEvictionCount();
+    }
+    
+    @Override
+    public long getExpirationCount(String region) {
+        final BoundedCache cache = caches.get(region);
+        return cache == null ? 0L : cache.getExpirationCount();
+    }
+    
+    @Override
+    public long getElementCount(String region) {
+        final BoundedCache cache = caches.get(region);
+        return cache == null ? 0L : cache.getElementCountInMemory();
+    }
+    
+    @Override
+    public String[] getSummary() {
+        final List<String> lines = Lists.newArrayList();
+        for (String region : getRegionNames()) {
+            final BoundedCache cache = caches.get(region);
+            if (cache == null) continue;
+            lines.add(String.format(Locale.ENGLISH, 
+                "%s size=%d/%d hits=%d misses=%d puts=%d evictions=%d expirations=%d",
+                region, cache.getElementCountInMemory(), cache.getMaxSize(), cache.getHitCount(),
+                cache.getMissCount(), cache.getPutCount(), cache.getEvictionCount(), cache.getExpirationCount()
+            ));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+    
+    @Override
+    public void evictAll(String region) {
+        final BoundedCache cache = caches.get(region);
+        if (cache != null) cache.clear();
+    }
+    
+}
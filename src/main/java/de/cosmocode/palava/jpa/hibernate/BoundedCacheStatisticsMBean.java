@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link BoundedCacheStatistics}.
+ *
+ * @author Willi Schoenborn
+ */
+public interface BoundedCacheStatisticsMBean {
+
+    /**
+     * Provides the names of all regions.
+     * 
+     * @return the region names
+     */
+    String[] getRegionNames();
+    
+    long getHitCount(String region);
+    
+    long getMissCount(String region);
+    
+    long getPutCount(String region);
+    
+    long getEvictionCount(String region);
+    
+    long getExpirationCount(String region);
+    
+    long getElementCount(String region);
+    
+    /**
+     * Summarizes size, hits, misses, puts, evictions and expirations of every region.
+     * 
+     * @return one line per region
+     */
+    String[] getSummary();
+    
+    /**
+     * Evicts all entries of the given region.
+     * 
+     * @param region the region name
+     */
+    void evictAll(String region);
+    
+}
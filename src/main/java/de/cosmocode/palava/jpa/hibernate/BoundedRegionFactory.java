@@ -0,0 +1,171 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.cache.CacheDataDescription;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.CollectionRegion;
+import org.hibernate.cache.EntityRegion;
+import org.hibernate.cache.QueryResultsRegion;
+import org.hibernate.cache.RegionFactory;
+import org.hibernate.cache.Timestamper;
+import org.hibernate.cache.TimestampsRegion;
+import org.hibernate.cache.access.AccessType;
+import org.hibernate.cache.impl.bridge.CollectionRegionAdapter;
+import org.hibernate.cache.impl.bridge.EntityRegionAdapter;
+import org.hibernate.cache.impl.bridge.QueryResultsRegionAdapter;
+import org.hibernate.cache.impl.bridge.TimestampsRegionAdapter;
+import org.hibernate.cfg.Settings;
+import org.hibernate.util.PropertiesHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link RegionFactory} backed by bounded, in-heap {@link BoundedCache}s.
+ * Enable it in the hibernate config using:
+ * <pre>
+ * hibernate.cache.region.factory_class = de.cosmocode.palava.jpa.hibernate.BoundedRegionFactory
+ * </pre>
+ * Region sizes and time to live (in seconds) can be configured globally using
+ * {@value #MAX_SIZE} and {@value #TTL} and per region by appending the region name,
+ * e.g. {@code hibernate.cache.bounded.max_size.com.example.Country}. Timestamp regions
+ * are never bounded. Metrics are published by the {@link DefaultHibernateService}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class BoundedRegionFactory implements RegionFactory {
+
+    public static final String MAX_SIZE = "hibernate.cache.bounded.max_size";
+    
+    public static final String TTL = "hibernate.cache.bounded.ttl";
+    
+    private static final Logger LOG = LoggerFactory.getLogger(BoundedRegionFactory.class);
+    
+    private static final int DEFAULT_MAX_SIZE = 10000;
+    
+    private final BoundedCacheStatistics statistics = new BoundedCacheStatistics();
+    
+    private Settings settings;
+    
+    private Properties properties;
+    
+    public BoundedRegionFactory() {
+        
+    }
+    
+    /**
+     * Constructor used by Hibernate. Properties are read in {@link #start(Settings, Properties)}.
+     * 
+     * @param properties the configuration properties
+     */
+    public BoundedRegionFactory(Properties properties) {
+        
+    }
+    
+    @Override
+    public void start(Settings currentSettings, Properties currentProperties) throws CacheException {
+        this.settings = currentSettings;
+        this.properties = currentProperties;
+    }
+    
+    @Override
+    public void stop() {
+        statistics.clear();
+    }
+    
+    @Override
+    public boolean isMinimalPutsEnabledByDefault() {
+        return false;
+    }
+    
+    @Override
+    public AccessType getDefaultAccessType() {
+        return AccessType.READ_WRITE;
+    }
+    
+    @Override
+    public long nextTimestamp() {
+        return Timestamper.next();
+    }
+    
+    private BoundedCache newCache(String region, boolean bounded) {
+        final int globalSize = PropertiesHelper.getInt(MAX_SIZE, properties, DEFAULT_MAX_SIZE);
+        final int maxSize = bounded ? PropertiesHelper.getInt(MAX_SIZE + "." + region, properties, globalSize) : 0;
+        final int globalTtl = PropertiesHelper.getInt(TTL, properties, 0);
+        final int ttl = bounded ? PropertiesHelper.getInt(TTL + "." + region, properties, globalTtl) : 0;
+        LOG.info("Building cache region {} with max size {} and ttl {}s", new Object[] {region, maxSize, ttl});
+        final BoundedCache cache = new BoundedCache(region, maxSize, TimeUnit.SECONDS.toNanos(ttl));
+        statistics.add(cache);
+        return cache;
+    }
+    
+    @Override
+    public EntityRegion buildEntityRegion(String regionName, Properties props, CacheDataDescription metadata)
+        throws CacheException {
+        return new EntityRegionAdapter(newCache(regionName, true), settings, metadata);
+    }
+    
+    @Override
+    public CollectionRegion buildCollectionRegion(String regionName, Properties props, 
+        CacheDataDescription metadata) throws CacheException {
+        return new CollectionRegionAdapter(newCache(regionName, true), settings, metadata);
+    }
+    
+    @Override
+    public QueryResultsRegion buildQueryResultsRegion(String regionName, Properties props) throws CacheException {
+        return new QueryResults(newCache(regionName, true), settings);
+    }
+    
+    @Override
+    public TimestampsRegion buildTimestampsRegion(String regionName, Properties props) throws CacheException {
+        return new Timestamps(newCache(regionName, false), settings);
+    }
+    
+    BoundedCacheStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Query results region backed by a {@link BoundedCache}.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class QueryResults extends QueryResultsRegionAdapter {
+        
+        public QueryResults(BoundedCache cache, Settings settings) {
+            super(cache, settings);
+        }
+        
+    }
+    
+    /**
+     * Timestamps region backed by an unbounded {@link BoundedCache}.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Timestamps extends TimestampsRegionAdapter {
+        
+        public Timestamps(BoundedCache cache, Settings settings) {
+            super(cache, settings);
+        }
+        
+    }
+    
+}
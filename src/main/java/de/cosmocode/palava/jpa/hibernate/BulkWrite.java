@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Persists or merges a sequence of entities in its own session and transaction.
+ * The session is flushed and cleared after every chunk, so the persistence context
+ * never holds more than one chunk of entities. Chunks should match the JDBC batch size.
+ *
+ * @author Willi Schoenborn
+ */
+final class BulkWrite {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkWrite.class);
+    
+    private final SessionFactory factory;
+    
+    private final int chunkSize;
+    
+    private final boolean merge;
+    
+    /**
+     * Creates a new {@link BulkWrite}.
+     * 
+     * @param factory the session factory
+     * @param chunkSize the number of entities per flush
+     * @param merge true to merge, false to persist
+     */
+    public BulkWrite(SessionFactory factory, int chunkSize, boolean merge) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        this.chunkSize = chunkSize;
+        this.merge = merge;
+    }
+    
+    /**
+     * Writes all given entities. The transaction is rolled back if a write fails.
+     * 
+     * @param entities the entities
+     * @return the result
+     * @throws HibernateException if writing fails
+     */
+    public BulkWriteResult run(Iterable<?> entities) {
+        Preconditions.checkNotNull(entities, "Entities");
+        final long start = System.nanoTime();
+        final Session session = factory.openSession();
+        try {
+            // writes don't have to pass the second level cache
+            session.setCacheMode(CacheMode.IGNORE);
+            session.setFlushMode(FlushMode.MANUAL);
+            final Transaction transaction = session.beginTransaction();
+            long rows = 0L;
+            long chunks = 0L;
+            try {
+                for (Object entity : entities) {
+                    if (merge) {
+                        session.merge(entity);
+                    } else {
+                        session.persist(entity);
+                    }
+                    if (++rows % chunkSize == 0) {
+                        session.flush();
+                        session.clear();
+                        chunks++;
+                        LOG.trace("Flushed chunk {}", chunks);
+                    }
+                }
+                if (rows % chunkSize != 0) {
+                    session.flush();
+                    chunks++;
+                }
+                transaction.commit();
+            } catch (RuntimeException e) {
+                rollback(transaction);
+                throw e;
+            }
+            final BulkWriteResult result = new BulkWriteResult(rows, chunks, System.nanoTime() - start);
+            LOG.info("Bulk {}: {}", merge ? "merge" : "persist", result);
+            return result;
+        } finally {
+            session.close();
+        }
+    }
+    
+    private void rollback(Transaction transaction) {
+        try {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+        } catch (HibernateException e) {
+            LOG.warn("Unable to roll back bulk write", e);
+        }
+    }
+    
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a bulk write started by {@link HibernateService#persistAll(Iterable)}
+ * or {@link HibernateService#mergeAll(Iterable)}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class BulkWriteResult {
+
+    private final long rows;
+    
+    private final long chunks;
+    
+    private final long nanos;
+    
+    BulkWriteResult(long rows, long chunks, long nanos) {
+        this.rows = rows;
+        this.chunks = chunks;
+        this.nanos = nanos;
+    }
+    
+    /**
+     * Provides the number of written entities.
+     * 
+     * @return the number of rows
+     */
+    public long getRows() {
+        return rows;
+    }
+    
+    /**
+     * Provides the number of chunks, i.e. the number of flushes.
+     * 
+     * @return the number of chunks
+     */
+    public long getChunks() {
+        return chunks;
+    }
+    
+    /**
+     * Provides the total time including the commit.
+     * 
+     * @param unit the desired unit
+     * @return the elapsed time in the given unit
+     */
+    public long getTime(TimeUnit unit) {
+        return unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Provides the throughput.
+     * 
+     * @return the written rows per second
+     */
+    public double getRowsPerSecond() {
+        return nanos == 0L ? 0.0 : rows * (double) TimeUnit.SECONDS.toNanos(1L) / nanos;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%d rows in %d chunks, %dms, %.1f rows/s", 
+            rows, chunks, getTime(TimeUnit.MILLISECONDS), getRowsPerSecond());
+    }
+    
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.NonUniqueResultException;
+import org.hibernate.Query;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.query.HQLQueryPlan;
+import org.hibernate.event.EventSource;
+import org.hibernate.impl.AbstractQueryImpl;
+import org.hibernate.impl.QueryImpl;
+import org.hibernate.transform.ResultTransformer;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A {@link Query} decorator which answers cacheable HQL queries from a {@link QueryResultCache}.
+ * {@link #setCacheable(boolean)} is not passed to the underlying query, the result cache replaces
+ * Hibernate's query cache. Like Hibernate's query cache, entities are cached by identifier
+ * and resolved in the current session, so only queries whose entities are second-level cached
+ * are cached. Otherwise a hit would load every entity by id. HQL bulk updates invalidate the
+ * affected tables, native updates are covered by {@link InvalidatingSQLQuery}.
+ * <p>
+ * Queries with result transformers, constructor expressions, locks or enabled filters 
+ * are never cached. Inserts and deletes which haven't been flushed yet bypass the cache,
+ * modifications of loaded entities don't. Like with {@link FlushMode#COMMIT}, those are
+ * not visible to cached results until the session gets flushed.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class CachingQuery extends ForwardingQuery {
+    
+    private static final Pattern CONSTRUCTOR = Pattern.compile("(?i)\\bselect\\s+(distinct\\s+)?new\\s");
+
+    private static final Method NAMED_PARAMS = accessible("getNamedParams");
+    
+    private static final Method NAMED_PARAMETER_LISTS = accessible("getNamedParameterLists");
+    
+    private final Query query;
+    
+    private final DestroyableSession session;
+    
+    private final QueryResultCache cache;
+    
+    private boolean cacheable;
+    
+    private boolean transformed;
+    
+    public CachingQuery(Query query, DestroyableSession session, QueryResultCache cache) {
+        this.query = Preconditions.checkNotNull(query, "Query");
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+    }
+    
+    private static Method accessible(String name) {
+        try {
+            final Method method = AbstractQueryImpl.class.getDeclaredMethod(name);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    @Override
+    protected Query delegate() {
+        return query;
+    }
+    
+    @Override
+    public Query setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+        return this;
+    }
+    
+    @Override
+    public Query setResultTransformer(ResultTransformer transformer) {
+        this.transformed = transformer != null;
+        return super.setResultTransformer(transformer);
+    }
+    
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List list() throws HibernateException {
+        if (!cacheable) return super.list();
+        
+        final SessionImplementor implementor = SessionImplementor.class.cast(session.delegate());
+        final Set<String> spaces = spacesOf(implementor);
+        
+        if (spaces == null || cache.isWritten(session, spaces) || isPending(implementor, spaces)) {
+            cache.bypass();
+            return super.list();
+        }
+        
+        final AbstractQueryImpl impl = AbstractQueryImpl.class.cast(query);
+        final CacheMode mode = impl.getCacheMode() == null ? implementor.getCacheMode() : impl.getCacheMode();
+        final QueryResultCache.Key key = new QueryResultCache.Key(
+            getQueryString(), impl.valueArray(), 
+            (Map<?, ?>) invoke(NAMED_PARAMS, impl), (Map<?, ?>) invoke(NAMED_PARAMETER_LISTS, impl), 
+            impl.getSelection()
+        );
+        final Type[] types = getReturnTypes();
+        
+        if (mode.isGetEnabled()) {
+            final Object[] rows = cache.get(key);
+            if (rows != null) return assemble(rows, types, implementor);
+        }
+        
+        final long stamp = cache.stamp(spaces);
+        final List result = super.list();
+        if (mode.isPutEnabled()) {
+            cache.put(key, spaces, stamp, disassemble(result, types, implementor));
+        }
+        return result;
+    }
+    
+    private Set<String> spacesOf(SessionImplementor implementor) {
+        if (!(query instanceof QueryImpl) || transformed) return null;
+        if (CONSTRUCTOR.matcher(getQueryString()).find()) return null;
+        
+        final LockOptions lockOptions = AbstractQueryImpl.class.cast(query).getLockOptions();
+        if (lockOptions.getLockMode().greaterThan(LockMode.READ) || lockOptions.getAliasLockCount() > 0) {
+            return null;
+        }
+        if (!implementor.getLoadQueryInfluencers().getEnabledFilters().isEmpty()) return null;
+        
+        for (Type type : getReturnTypes()) {
+            if (type.isCollectionType()) {
+                return null;
+            } else if (type.isEntityType()) {
+                final String entityName = EntityType.class.cast(type).getAssociatedEntityName(implementor.getFactory());
+                if (!implementor.getFactory().getEntityPersister(entityName).hasCache()) return null;
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        final Set<String> spaces = planOf(implementor).getQuerySpaces();
+        return spaces;
+    }
+    
+    private HQLQueryPlan planOf(SessionImplementor implementor) {
+        return implementor.getFactory().getQueryPlanCache().getHQLQueryPlan(
+            getQueryString(), false, Collections.EMPTY_MAP);
+    }
+    
+    private boolean isPending(SessionImplementor implementor, Set<String> spaces) {
+        // a cache hit skips the auto flush, checks the queued actions only instead of a full dirty check
+        return !session.getFlushMode().lessThan(FlushMode.AUTO) && 
+            EventSource.class.cast(implementor).getActionQueue().areTablesToBeUpdated(spaces);
+    }
+    
+    private static Object invoke(Method method, Object target) {
+        try {
+            return method.invoke(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    private static Object[] disassemble(List<?> result, Type[] types, SessionImplementor implementor) {
+        final Object[] rows = new Object[result.size()];
+        for (int i = 0; i < rows.length; i++) {
+            final Object row = result.get(i);
+            if (types.length == 1) {
+                rows[i] = types[0].disassemble(row, implementor, null);
+            } else {
+                final Object[] columns = (Object[]) row;
+                final Serializable[] disassembled = new Serializable[types.length];
+                for (int j = 0; j < types.length; j++) {
+                    disassembled[j] = types[j].disassemble(columns[j], implementor, null);
+                }
+                rows[i] = disassembled;
+            }
+        }
+        return rows;
+    }
+    
+    private static List<Object> assemble(Object[] rows, Type[] types, SessionImplementor implementor) {
+        final List<Object> result = Lists.newArrayListWithCapacity(rows.length);
+        for (Object row : rows) {
+            if (types.length == 1) {
+                result.add(types[0].assemble((Serializable) row, implementor, null));
+            } else {
+                final Serializable[] disassembled = (Serializable[]) row;
+                final Object[] columns = new Object[types.length];
+                for (int j = 0; j < types.length; j++) {
+                    columns[j] = types[j].assemble(disassembled[j], implementor, null);
+                }
+                result.add(columns);
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public Object uniqueResult() throws HibernateException {
+        // the underlying query would call its own list()
+        final List<?> result = list();
+        if (result.isEmpty()) return null;
+        final Object first = result.get(0);
+        for (Object element : result) {
+            if (element != first) {
+                throw new NonUniqueResultException(result.size());
+            }
+        }
+        return first;
+    }
+    
+    @Override
+    public int executeUpdate() throws HibernateException {
+        final int rows = super.executeUpdate();
+        if (query instanceof QueryImpl) {
+            final SessionImplementor implementor = SessionImplementor.class.cast(session.delegate());
+            @SuppressWarnings("unchecked")
+            final Set<String> spaces = planOf(implementor).getQuerySpaces();
+            cache.written(session, spaces.toArray(new Serializable[spaces.size()]), true);
+        }
+        return rows;
+    }
+    
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Collections;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.engine.NamedQueryDefinition;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * A {@link DestroyableSession} decorator which creates {@link CachingQuery}s.
+ * Named queries declared as cacheable are cached by default. Native queries
+ * are never cached, their updates invalidate the cache using {@link InvalidatingSQLQuery}.
+ *
+ * @author Willi Schoenborn
+ */
+final class CachingSession extends ForwardingSession implements Destroyable {
+
+    private static final long serialVersionUID = -5030129566263574312L;
+
+    private final DestroyableSession session;
+    
+    private final QueryResultCache cache;
+    
+    public CachingSession(DestroyableSession session, QueryResultCache cache) {
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+    }
+    
+    @Override
+    protected Session delegate() {
+        return session;
+    }
+    
+    @Override
+    public Query createQuery(String queryString) throws HibernateException {
+        return new CachingQuery(super.createQuery(queryString), session, cache);
+    }
+    
+    @Override
+    public SQLQuery createSQLQuery(String queryString) throws HibernateException {
+        final SQLQuery query = super.createSQLQuery(queryString);
+        return new InvalidatingSQLQuery(query, SessionImplementor.class.cast(session.delegate()), cache, 
+            Collections.<String>emptySet());
+    }
+    
+    @Override
+    public Query getNamedQuery(String queryName) throws HibernateException {
+        final Query query = super.getNamedQuery(queryName);
+        final SessionFactoryImplementor factory = SessionFactoryImplementor.class.cast(getSessionFactory());
+        if (query instanceof SQLQuery) {
+            return new InvalidatingSQLQuery(SQLQuery.class.cast(query), 
+                SessionImplementor.class.cast(session.delegate()), cache, 
+                InvalidatingSQLQuery.spacesOf(factory, queryName));
+        }
+        final NamedQueryDefinition definition = factory.getNamedQuery(queryName);
+        final boolean cacheable = definition != null && definition.isCacheable();
+        if (cacheable) {
+            query.setCacheable(false);
+        }
+        return new CachingQuery(query, session, cache).setCacheable(cacheable);
+    }
+    
+    @Override
+    public void destroy() {
+        session.destroy();
+    }
+    
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.hibernate.Version;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.mapping.MappedSuperclass;
+import org.hibernate.mapping.PersistentClass;
+import org.hibernate.util.DTDEntityResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+/**
+ * An on-disk cache of a fully built {@link Configuration}. Entries are keyed by
+ * a content hash of the config file, the mapping files it references, the schema and
+ * the Hibernate version. Additionally the bytecode hash
+ * of every mapped class is stored and verified on load, so any change of the
+ * inputs invalidates the cache automatically.
+ *
+ * @author Willi Schoenborn
+ */
+final class ConfigurationCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigurationCache.class);
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private final File file;
+
+    private final File config;
+
+    private final URL schema;
+
+    public ConfigurationCache(File file, File config, URL schema) {
+        this.file = Preconditions.checkNotNull(file, "File");
+        this.config = Preconditions.checkNotNull(config, "Config");
+        this.schema = Preconditions.checkNotNull(schema, "Schema");
+    }
+
+    /**
+     * Loads the cached configuration.
+     *
+     * @return the cached configuration or null if there is no valid cache entry
+     */
+    public Configuration load() {
+        if (!file.isFile()) {
+            LOG.info("No cached configuration found at {}", file);
+            return null;
+        }
+
+        final ObjectInputStream stream;
+
+        try {
+            stream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (IOException e) {
+            LOG.warn("Unable to open cached configuration " + file, e);
+            return null;
+        }
+
+        try {
+            final String key = stream.readUTF();
+            if (!key.equals(key())) {
+                LOG.info("Config, mappings, schema or Hibernate changed, ignoring cached configuration {}", file);
+                return null;
+            }
+
+            @SuppressWarnings("unchecked")
+            final Map<String, String> classes = (Map<String, String>) stream.readObject();
+            for (Entry<String, String> entry : classes.entrySet()) {
+                if (!entry.getValue().equals(hashOf(entry.getKey()))) {
+                    LOG.info("{} changed, ignoring cached configuration {}", entry.getKey(), file);
+                    return null;
+                }
+            }
+
+            final Configuration configuration = (Configuration) stream.readObject();
+            LOG.info("Loaded cached configuration from {}", file);
+            return configuration;
+        } catch (IOException e) {
+            LOG.warn("Unable to read cached configuration " + file, e);
+            return null;
+        } catch (ClassNotFoundException e) {
+            LOG.warn("Unable to read cached configuration " + file, e);
+            return null;
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Stores the given configuration. The configuration's mappings have to be
+     * built already, otherwise a warm start would not skip the binding.
+     * Failures are logged and otherwise ignored.
+     *
+     * @param configuration the configuration to store
+     */
+    public void store(Configuration configuration) {
+        Preconditions.checkNotNull(configuration, "Configuration");
+
+        final File temp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream stream = null;
+
+        try {
+            final Map<String, String> classes = Maps.newHashMap();
+            final Iterator<?> mappings = configuration.getClassMappings();
+            while (mappings.hasNext()) {
+                final PersistentClass mapping = PersistentClass.class.cast(mappings.next());
+                if (mapping.getClassName() == null) continue;
+                classes.put(mapping.getClassName(), hashOf(mapping.getClassName()));
+            }
+            final Iterator<?> superclasses = configuration.getMappedSuperclassMappings();
+            while (superclasses.hasNext()) {
+                final MappedSuperclass mapping = MappedSuperclass.class.cast(superclasses.next());
+                if (mapping.getMappedClass() == null) continue;
+                final String name = mapping.getMappedClass().getName();
+                classes.put(name, hashOf(name));
+            }
+
+            Files.createParentDirs(file);
+            stream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            stream.writeUTF(key());
+            stream.writeObject(classes);
+            stream.writeObject(configuration);
+            stream.close();
+            stream = null;
+
+            Files.move(temp, file);
+            LOG.info("Stored configuration in {}", file);
+        } catch (IOException e) {
+            LOG.warn("Unable to store configuration in " + file, e);
+        } finally {
+            Closeables.closeQuietly(stream);
+            if (temp.exists() && !temp.delete()) {
+                LOG.warn("Unable to delete {}", temp);
+            }
+        }
+    }
+
+    private String key() throws IOException {
+        final MessageDigest digest = newDigest();
+        digest.update(Version.getVersionString().getBytes(Charsets.UTF_8));
+        digest.update(Files.toByteArray(config));
+        digest.update(Resources.toByteArray(schema));
+        for (Object mapping : mappingsOf(config)) {
+            final Element element = Element.class.cast(mapping);
+            final String resource = element.attributeValue("resource");
+            final String path = element.attributeValue("file", element.attributeValue("jar"));
+            if (resource != null) {
+                final URL url = loader().getResource(resource);
+                digest.update((resource + "=" + (url == null ? "" : toHex(hashOf(url)))).getBytes(Charsets.UTF_8));
+            } else if (path != null) {
+                final File mappingFile = new File(path);
+                final String hash = mappingFile.isFile() ? toHex(Files.getDigest(mappingFile, newDigest())) : "";
+                digest.update((mappingFile.getPath() + "=" + hash).getBytes(Charsets.UTF_8));
+            }
+        }
+        return toHex(digest.digest());
+    }
+    
+    private static List<?> mappingsOf(File config) throws IOException {
+        final SAXReader reader = new SAXReader();
+        reader.setEntityResolver(new DTDEntityResolver());
+        reader.setValidation(false);
+        final Document document;
+        try {
+            document = reader.read(config);
+        } catch (DocumentException e) {
+            throw new IOException("Unable to parse " + config, e);
+        }
+        final Element factory = document.getRootElement().element("session-factory");
+        return factory == null ? Collections.emptyList() : factory.elements("mapping");
+    }
+    
+    private ClassLoader loader() {
+        return Thread.currentThread().getContextClassLoader() == null ?
+            getClass().getClassLoader() : Thread.currentThread().getContextClassLoader();
+    }
+    
+    private static byte[] hashOf(URL url) throws IOException {
+        return ByteStreams.getDigest(Resources.newInputStreamSupplier(url), newDigest());
+    }
+
+    private String hashOf(String className) throws IOException {
+        final String resource = className.replace('.', '/') + ".class";
+        final URL url = loader().getResource(resource);
+        if (url == null) {
+            return "";
+        } else {
+            return toHex(hashOf(url));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,537 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A lock-free pool of JDBC connections. Connections are claimed by a compare-and-set
+ * on their state. A thread first tries the connection it returned last, then scans
+ * all connections, then opens a new one if the pool is not full. Otherwise it waits
+ * until a returning thread hands a connection over. Returning threads never wait for
+ * a waiting thread to take the connection.
+ * <p>
+ * Returned connections are rolled back unless in auto-commit mode and reset to the read-only,
+ * auto-commit and isolation settings they were opened with. Connections which can't be
+ * rolled back or reset are discarded.
+ * </p>
+ * <p>
+ * Connections which have been idle for longer than the validation interval are
+ * validated before they are handed out. A housekeeping thread closes connections which
+ * have been idle for too long and reports connections held longer than the leak threshold,
+ * including the stack trace of their checkout.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class ConnectionPool implements ConnectionPoolMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+    
+    private static final int REMOVED = -1;
+    
+    private static final int IDLE = 0;
+    
+    private static final int IN_USE = 1;
+    
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1L);
+    
+    private static final int VALIDATION_TIMEOUT = 5;
+    
+    // signals waiting threads that a slot became free
+    private static final Entry FREED = new Entry(null, false, true, Connection.TRANSACTION_NONE);
+    
+    private final Factory factory;
+    
+    private final int maxSize;
+    
+    private final long timeout;
+    
+    private final long validationInterval;
+    
+    private final long leakThreshold;
+    
+    private final long idleTimeout;
+    
+    private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+    
+    private final AtomicInteger size = new AtomicInteger();
+    
+    private final AtomicInteger waiters = new AtomicInteger();
+    
+    // returned connections and freed slots, stale once claimed by a scanning thread
+    private final LinkedBlockingQueue<Entry> handoff = new LinkedBlockingQueue<Entry>();
+    
+    private final ThreadLocal<WeakReference<Entry>> last = new ThreadLocal<WeakReference<Entry>>();
+    
+    private final ScheduledExecutorService housekeeper;
+    
+    private final StripedCounter borrows = new StripedCounter();
+    
+    private final StripedCounter waitTime = new StripedCounter();
+    
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    
+    private final StripedCounter timeouts = new StripedCounter();
+    
+    private final StripedCounter validationFailures = new StripedCounter();
+    
+    private final StripedCounter leaks = new StripedCounter();
+    
+    private volatile boolean closed;
+    
+    /**
+     * Opens new connections.
+     *
+     * @author Willi Schoenborn
+     */
+    interface Factory {
+        
+        /**
+         * Opens a new connection.
+         * 
+         * @return a new connection
+         * @throws SQLException if opening fails
+         */
+        Connection open() throws SQLException;
+        
+    }
+    
+    /**
+     * Creates a new {@link ConnectionPool}. All durations are in milliseconds.
+     * 
+     * @param factory the factory to open new connections
+     * @param maxSize the maximum number of connections
+     * @param timeout the maximum time to wait for a connection
+     * @param validationInterval the idle time after which connections are validated before use
+     * @param leakThreshold the time after which a used connection is reported as leaked, 0 to disable
+     * @param idleTimeout the idle time after which connections are closed, 0 to disable
+     */
+    public ConnectionPool(Factory factory, int maxSize, long timeout, long validationInterval, 
+        long leakThreshold, long idleTimeout) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        Preconditions.checkArgument(maxSize > 0, "Max size must be positive");
+        Preconditions.checkArgument(timeout >= 0, "Timeout must not be negative");
+        Preconditions.checkArgument(validationInterval >= 0, "Validation interval must not be negative");
+        Preconditions.checkArgument(leakThreshold >= 0, "Leak threshold must not be negative");
+        Preconditions.checkArgument(idleTimeout >= 0, "Idle timeout must not be negative");
+        this.maxSize = maxSize;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.validationInterval = TimeUnit.MILLISECONDS.toNanos(validationInterval);
+        this.leakThreshold = TimeUnit.MILLISECONDS.toNanos(leakThreshold);
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("connection-pool-housekeeper-%d").setDaemon(true).build()
+        );
+        final long period = Math.max(1000L, Math.min(30000L, Math.min(
+            leakThreshold == 0L ? Long.MAX_VALUE : leakThreshold / 2, 
+            idleTimeout == 0L ? Long.MAX_VALUE : idleTimeout / 2)));
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            
+            @Override
+            public void run() {
+                houseKeep();
+            }
+            
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * A pooled connection and its state.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Entry {
+        
+        private final Connection connection;
+        
+        private final boolean readOnly;
+        
+        private final boolean autoCommit;
+        
+        private final int isolation;
+        
+        private final AtomicInteger state = new AtomicInteger(IN_USE);
+        
+        private volatile long lastUsed = System.nanoTime();
+        
+        private volatile long borrowed;
+        
+        private volatile String borrower;
+        
+        private volatile Throwable origin;
+        
+        private volatile boolean leaked;
+        
+        public Entry(Connection connection, boolean readOnly, boolean autoCommit, int isolation) {
+            this.connection = connection;
+            this.readOnly = readOnly;
+            this.autoCommit = autoCommit;
+            this.isolation = isolation;
+        }
+        
+    }
+    
+    /**
+     * Checks out a connection.
+     * 
+     * @return a connection
+     * @throws SQLException if no connection became available in time or opening a new connection failed
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool has been closed");
+        final long start = System.nanoTime();
+        while (true) {
+            final Entry entry = acquire(start + timeout);
+            if (entry == null) {
+                timeouts.increment();
+                throw new SQLException(String.format("Timed out after %sms waiting for a connection, %s of %s in use",
+                    TimeUnit.NANOSECONDS.toMillis(timeout), getActiveCount(), maxSize));
+            } else if (isValid(entry)) {
+                onBorrow(start);
+                return entry.connection;
+            } else {
+                validationFailures.increment();
+                LOG.info("Discarding invalid connection {}", entry.connection);
+                remove(entry);
+            }
+        }
+    }
+    
+    private Entry acquire(long deadline) throws SQLException {
+        final WeakReference<Entry> reference = last.get();
+        final Entry preferred = reference == null ? null : reference.get();
+        if (preferred != null && preferred.state.compareAndSet(IDLE, IN_USE)) return claim(preferred);
+        
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                for (Entry entry : entries) {
+                    if (entry.state.compareAndSet(IDLE, IN_USE)) return claim(entry);
+                }
+                
+                final Entry created = create();
+                if (created != null) return created;
+                
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return null;
+                
+                final Entry handed;
+                try {
+                    handed = handoff.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection", e);
+                }
+                if (handed != null && handed.state.compareAndSet(IDLE, IN_USE)) return claim(handed);
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+    
+    private Entry create() throws SQLException {
+        while (true) {
+            final int current = size.get();
+            if (current >= maxSize) return null;
+            if (size.compareAndSet(current, current + 1)) break;
+        }
+        Connection connection = null;
+        final Entry entry;
+        try {
+            connection = factory.open();
+            entry = new Entry(connection, connection.isReadOnly(), connection.getAutoCommit(), 
+                connection.getTransactionIsolation());
+        } catch (SQLException e) {
+            discard(connection);
+            throw e;
+        } catch (RuntimeException e) {
+            discard(connection);
+            throw e;
+        }
+        claim(entry);
+        entries.add(entry);
+        LOG.debug("Opened connection {}, {} of {}", new Object[] {connection, size.get(), maxSize});
+        return entry;
+    }
+    
+    private Entry claim(Entry entry) {
+        // before validation, which may take a while, so the housekeeper never sees a stale checkout
+        entry.borrowed = System.nanoTime();
+        entry.leaked = false;
+        if (leakThreshold > 0L) {
+            entry.borrower = Thread.currentThread().getName();
+            entry.origin = new Exception("Connection checked out here");
+        }
+        return entry;
+    }
+    
+    private void discard(Connection connection) {
+        size.decrementAndGet();
+        signal(FREED);
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.debug("Unable to close connection", e);
+        }
+    }
+    
+    private boolean isValid(Entry entry) {
+        if (System.nanoTime() - entry.lastUsed < validationInterval) return true;
+        try {
+            return entry.connection.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        } catch (AbstractMethodError e) {
+            // pre JDBC 4 driver
+            return true;
+        }
+    }
+    
+    private void onBorrow(long start) {
+        final long waited = System.nanoTime() - start;
+        borrows.increment();
+        waitTime.add(waited);
+        while (true) {
+            final long max = maxWaitTime.get();
+            if (waited <= max || maxWaitTime.compareAndSet(max, waited)) break;
+        }
+    }
+    
+    /**
+     * Returns a connection to the pool.
+     * 
+     * @param connection a connection checked out by {@link #borrow()}
+     * @throws SQLException if closing an unknown connection fails
+     */
+    public void release(Connection connection) throws SQLException {
+        final Entry entry = entryOf(connection);
+        if (entry == null) {
+            LOG.warn("Closing connection {} which does not belong to this pool", connection);
+            connection.close();
+            return;
+        }
+        if (entry.leaked) {
+            LOG.info("Connection reported as leaked returned after {}ms", 
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.borrowed));
+        }
+        entry.origin = null;
+        entry.lastUsed = System.nanoTime();
+        
+        if (closed) {
+            remove(entry);
+            return;
+        } else if (!reset(entry)) {
+            remove(entry);
+            return;
+        }
+        
+        entry.state.set(IDLE);
+        if (entry != preferred()) {
+            last.set(new WeakReference<Entry>(entry));
+        }
+        signal(entry);
+    }
+    
+    private boolean reset(Entry entry) {
+        final Connection connection = entry.connection;
+        try {
+            // an open transaction must neither leak its locks nor be committed by the next borrower
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            if (connection.getAutoCommit() != entry.autoCommit) {
+                connection.setAutoCommit(entry.autoCommit);
+            }
+            if (connection.isReadOnly() != entry.readOnly) {
+                connection.setReadOnly(entry.readOnly);
+            }
+            if (connection.getTransactionIsolation() != entry.isolation) {
+                connection.setTransactionIsolation(entry.isolation);
+            }
+            return true;
+        } catch (SQLException e) {
+            LOG.info("Discarding connection " + connection + " which could not be rolled back or reset", e);
+            return false;
+        }
+    }
+    
+    private void signal(Entry entry) {
+        // every queued entry wakes a waiting thread which scans again, even if the entry is stale
+        if (waiters.get() > handoff.size()) {
+            handoff.offer(entry);
+        }
+    }
+    
+    private Entry preferred() {
+        final WeakReference<Entry> reference = last.get();
+        return reference == null ? null : reference.get();
+    }
+    
+    private Entry entryOf(Connection connection) {
+        final Entry preferred = preferred();
+        if (preferred != null && preferred.connection == connection) return preferred;
+        for (Entry entry : entries) {
+            if (entry.connection == connection) return entry;
+        }
+        return null;
+    }
+    
+    private void remove(Entry entry) {
+        entry.state.set(REMOVED);
+        if (entries.remove(entry)) {
+            size.decrementAndGet();
+            signal(FREED);
+        }
+        try {
+            entry.connection.close();
+        } catch (SQLException e) {
+            LOG.debug("Unable to close connection", e);
+        }
+    }
+    
+    private void houseKeep() {
+        final long now = System.nanoTime();
+        for (Entry entry : entries) {
+            final int state = entry.state.get();
+            if (state == IN_USE && leakThreshold > 0L && !entry.leaked && now - entry.borrowed > leakThreshold) {
+                entry.leaked = true;
+                leaks.increment();
+                final Throwable origin = entry.origin;
+                LOG.warn(String.format("Connection held by %s for more than %sms, possible leak", 
+                    entry.borrower, TimeUnit.NANOSECONDS.toMillis(leakThreshold)), origin);
+            } else if (state == IDLE && idleTimeout > 0L && now - entry.lastUsed > idleTimeout) {
+                if (entry.state.compareAndSet(IDLE, REMOVED)) {
+                    LOG.debug("Closing idle connection {}", entry.connection);
+                    remove(entry);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Closes all idle connections. Connections in use are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        for (Entry entry : entries) {
+            if (entry.state.compareAndSet(IDLE, REMOVED)) {
+                remove(entry);
+            }
+        }
+    }
+    
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    @Override
+    public int getTotalCount() {
+        return entries.size();
+    }
+    
+    @Override
+    public int getActiveCount() {
+        int active = 0;
+        for (Entry entry : entries) {
+            if (entry.state.get() == IN_USE) active++;
+        }
+        return active;
+    }
+    
+    @Override
+    public int getIdleCount() {
+        int idle = 0;
+        for (Entry entry : entries) {
+            if (entry.state.get() == IDLE) idle++;
+        }
+        return idle;
+    }
+    
+    @Override
+    public int getWaitingCount() {
+        return waiters.get();
+    }
+    
+    @Override
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+    
+    @Override
+    public double getAverageWaitTime() {
+        final long count = borrows.sum();
+        return count == 0L ? 0.0 : waitTime.sum() / NANOS_PER_MILLI / count;
+    }
+    
+    @Override
+    public double getMaxWaitTime() {
+        return maxWaitTime.get() / NANOS_PER_MILLI;
+    }
+    
+    @Override
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+    
+    @Override
+    public long getValidationFailureCount() {
+        return validationFailures.sum();
+    }
+    
+    @Override
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+    
+    @Override
+    public void clear() {
+        borrows.reset();
+        waitTime.reset();
+        maxWaitTime.set(0L);
+        timeouts.reset();
+        validationFailures.reset();
+        leaks.reset();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("ConnectionPool [total=%s, active=%s, maxSize=%s]", 
+            getTotalCount(), getActiveCount(), maxSize);
+    }
+    
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link ConnectionPool}. Times are reported in milliseconds.
+ *
+ * @author Willi Schoenborn
+ */
+public interface ConnectionPoolMBean {
+
+    /**
+     * Provides the maximum number of connections.
+     * 
+     * @return the maximum size
+     */
+    int getMaxSize();
+    
+    /**
+     * Provides the number of open connections.
+     * 
+     * @return the number of connections
+     */
+    int getTotalCount();
+    
+    /**
+     * Provides the number of connections in use.
+     * 
+     * @return the number of active connections
+     */
+    int getActiveCount();
+    
+    /**
+     * Provides the number of connections ready to be used.
+     * 
+     * @return the number of idle connections
+     */
+    int getIdleCount();
+    
+    /**
+     * Provides the number of threads currently waiting for a connection.
+     * 
+     * @return the number of waiting threads
+     */
+    int getWaitingCount();
+    
+    /**
+     * Provides the number of successful checkouts.
+     * 
+     * @return the number of checkouts
+     */
+    long getBorrowCount();
+    
+    /**
+     * Provides the average time a checkout took.
+     * 
+     * @return the average wait time in milliseconds
+     */
+    double getAverageWaitTime();
+    
+    /**
+     * Provides the longest time a checkout took.
+     * 
+     * @return the maximum wait time in milliseconds
+     */
+    double getMaxWaitTime();
+    
+    /**
+     * Provides the number of checkouts which timed out.
+     * 
+     * @return the number of timeouts
+     */
+    long getTimeoutCount();
+    
+    /**
+     * Provides the number of connections which failed validation.
+     * 
+     * @return the number of discarded connections
+     */
+    long getValidationFailureCount();
+    
+    /**
+     * Provides the number of connections which have been held longer than the leak threshold.
+     * 
+     * @return the number of suspected leaks
+     */
+    long getLeakCount();
+    
+    /**
+     * Resets all counters.
+     */
+    void clear();
+    
+}
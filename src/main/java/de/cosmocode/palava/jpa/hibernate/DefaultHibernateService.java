@@ -17,14 +17,38 @@
 package de.cosmocode.palava.jpa.hibernate;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
 import org.hibernate.Interceptor;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.cache.RegionFactory;
 import org.hibernate.cfg.AnnotationConfiguration;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.hibernate.event.AutoFlushEventListener;
 import org.hibernate.event.DeleteEventListener;
 import org.hibernate.event.DirtyCheckEventListener;
@@ -54,16 +78,25 @@ import org.hibernate.event.RefreshEventListener;
 import org.hibernate.event.ReplicateEventListener;
 import org.hibernate.event.SaveOrUpdateEventListener;
 import org.hibernate.jmx.StatisticsService;
+import org.hibernate.mapping.FetchProfile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimaps;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
 import de.cosmocode.palava.core.Registry;
-import de.cosmocode.palava.core.Registry.Key;
 import de.cosmocode.palava.core.lifecycle.Disposable;
 import de.cosmocode.palava.core.lifecycle.Initializable;
 import de.cosmocode.palava.core.lifecycle.LifecycleException;
@@ -80,6 +113,10 @@ public final class DefaultHibernateService implements HibernateService, Initiali
     
     private static final ImmutableMap<String, Class<?>> LISTENERS;
     
+    private static final int DEFAULT_CHUNK_SIZE = 50;
+    
+    private static final long DISPATCHER_TIMEOUT = 30L;
+    
     static {
         final ImmutableMap.Builder<String, Class<?>> builder = ImmutableMap.builder();
 
@@ -127,17 +164,129 @@ public final class DefaultHibernateService implements HibernateService, Initiali
     
     private final Registry registry;
     
+    private File cacheFile;
+    
+    private File replicaConfig;
+    
+    private Route readOnlyRoute = Route.PRIMARY;
+    
     private Interceptor interceptor;
     
     private boolean propagateEvents;
     
+    private String namespace;
+    
+    private long refresh = 10L;
+    
+    private TimeUnit refreshUnit = TimeUnit.SECONDS;
+    
+    private EventListenerBinder binder;
+    
+    private boolean asyncEvents;
+    
+    private int asyncWorkers = 1;
+    
+    private int asyncCapacity = 10000;
+    
+    private int asyncBatchSize = 100;
+    
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    
+    private AsyncEventDispatcher dispatcher;
+    
     private final MBeanService mBeanService;
     
     private final StatisticsService statistics = new StatisticsService();
     
+    private final StatisticsService replicaStatistics = new StatisticsService();
+    
+    private final Startup startup = new Startup();
+    
     private String name = HibernateService.class.getSimpleName();
     
-    private SessionFactory factory;
+    private StatisticsMode statisticsMode = StatisticsMode.FULL;
+    
+    private int sampleRate = 100;
+    
+    private SampledStatistics sampled;
+    
+    private LatencyStatistics latency;
+    
+    private boolean queryCaching;
+    
+    private int queryCacheSize = 1000;
+    
+    private QueryResultCache queryCache;
+    
+    private boolean lazyLoadDetection;
+    
+    private int lazyLoadThreshold = 10;
+    
+    private LazyLoadDetector lazyLoadDetector;
+    
+    private Integer watermark;
+    
+    private boolean watermarkClearing;
+    
+    private PersistenceContextWatermark persistenceContextWatermark;
+    
+    private boolean fetchPlans;
+    
+    private boolean fetchPlansAutoEnable;
+    
+    private int fetchPlansMinSessions = 20;
+    
+    private double fetchPlansMinRatio = 0.5d;
+    
+    private FetchPlanAdvisor fetchPlanAdvisor;
+    
+    private boolean leaks;
+    
+    private long leakThreshold = 60000L;
+    
+    private boolean leakStacks;
+    
+    private SessionLeakDetector leakDetector;
+    
+    private final ListMultimap<String, Object> builtInListeners = ArrayListMultimap.create();
+    
+    private final List<SessionListener> sessionListeners = Lists.newArrayList();
+    
+    private Integer batchSize;
+    
+    private boolean pooled;
+    
+    private boolean slowSql;
+    
+    private Integer slowSqlThreshold;
+    
+    private Integer chunkSize;
+    
+    private int fetchSize = 100;
+    
+    private Integer inChunkSize;
+    
+    private int fanOutThreads = 8;
+    
+    private ThreadPoolExecutor fanOutExecutor;
+    
+    private boolean warmUp;
+    
+    private URL warmUpQueries;
+    
+    private long warmUpNanos;
+    
+    private boolean async;
+    
+    private long timeout = 5L;
+    
+    private TimeUnit timeoutUnit = TimeUnit.MINUTES;
+    
+    private FutureTask<SessionFactory> task;
+    
+    private volatile SessionFactory factory;
+    
+    private SessionFactory replica;
     
     @Inject
     public DefaultHibernateService(
@@ -150,6 +299,21 @@ public final class DefaultHibernateService implements HibernateService, Initiali
         this.mBeanService = Preconditions.checkNotNull(mBeanService, "MBeanService");
     }
     
+    @Inject(optional = true)
+    void setCache(@Named("hibernate.cfg.cache") File file) {
+        this.cacheFile = Preconditions.checkNotNull(file, "File");
+    }
+    
+    @Inject(optional = true)
+    void setReplicaConfig(@Named("hibernate.replica.cfg") File replicaConfig) {
+        this.replicaConfig = Preconditions.checkNotNull(replicaConfig, "ReplicaConfig");
+    }
+    
+    @Inject(optional = true)
+    void setReadOnlyRoute(@Named("hibernate.readOnly.route") Route readOnlyRoute) {
+        this.readOnlyRoute = Preconditions.checkNotNull(readOnlyRoute, "ReadOnlyRoute");
+    }
+    
     @Inject(optional = true)
     void setInterceptor(Interceptor interceptor) {
         this.interceptor = Preconditions.checkNotNull(interceptor, "Interceptor");
@@ -160,21 +324,448 @@ public final class DefaultHibernateService implements HibernateService, Initiali
         this.propagateEvents = propagateEvents;
     }
 
+    @Inject(optional = true)
+    void setNamespace(@Named("hibernate.events.namespace") String namespace) {
+        this.namespace = Preconditions.checkNotNull(namespace, "Namespace");
+    }
+    
+    @Inject(optional = true)
+    void setRefresh(@Named("hibernate.events.refresh") long refresh) {
+        Preconditions.checkArgument(refresh >= 0, "Refresh must not be negative");
+        this.refresh = refresh;
+    }
+    
+    @Inject(optional = true)
+    void setRefreshUnit(@Named("hibernate.events.refreshUnit") TimeUnit refreshUnit) {
+        this.refreshUnit = Preconditions.checkNotNull(refreshUnit, "RefreshUnit");
+    }
+    
+    @Inject(optional = true)
+    void setAsyncEvents(@Named("hibernate.events.async") boolean asyncEvents) {
+        this.asyncEvents = asyncEvents;
+    }
+    
+    @Inject(optional = true)
+    void setAsyncWorkers(@Named("hibernate.events.async.workers") int asyncWorkers) {
+        Preconditions.checkArgument(asyncWorkers > 0, "Workers must be positive");
+        this.asyncWorkers = asyncWorkers;
+    }
+    
+    @Inject(optional = true)
+    void setAsyncCapacity(@Named("hibernate.events.async.capacity") int asyncCapacity) {
+        Preconditions.checkArgument(asyncCapacity > 0, "Capacity must be positive");
+        this.asyncCapacity = asyncCapacity;
+    }
+    
+    @Inject(optional = true)
+    void setAsyncBatchSize(@Named("hibernate.events.async.batchSize") int asyncBatchSize) {
+        Preconditions.checkArgument(asyncBatchSize > 0, "Batch size must be positive");
+        this.asyncBatchSize = asyncBatchSize;
+    }
+    
+    @Inject(optional = true)
+    void setOverflowPolicy(@Named("hibernate.events.async.overflow") OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy, "OverflowPolicy");
+    }
+    
     @Inject(optional = true)
     void setName(@Named("hibernate.jmx.name") String name) {
         this.name = Preconditions.checkNotNull(name, "Name");
     }
     
+    @Inject(optional = true)
+    void setStatisticsMode(@Named("hibernate.statistics.mode") StatisticsMode statisticsMode) {
+        this.statisticsMode = Preconditions.checkNotNull(statisticsMode, "StatisticsMode");
+    }
+    
+    @Inject(optional = true)
+    void setSampleRate(@Named("hibernate.statistics.sampleRate") int sampleRate) {
+        Preconditions.checkArgument(sampleRate > 0, "Sample rate must be positive");
+        this.sampleRate = sampleRate;
+    }
+    
+    @Inject(optional = true)
+    void setLatency(@Named("hibernate.latency") boolean enabled) {
+        this.latency = enabled ? new LatencyStatistics() : null;
+    }
+    
+    @Inject(optional = true)
+    void setQueryCaching(@Named("hibernate.queryCache") boolean queryCaching) {
+        this.queryCaching = queryCaching;
+    }
+    
+    @Inject(optional = true)
+    void setQueryCacheSize(@Named("hibernate.queryCache.maxSize") int queryCacheSize) {
+        Preconditions.checkArgument(queryCacheSize > 0, "Query cache size must be positive");
+        this.queryCacheSize = queryCacheSize;
+    }
+    
+    @Inject(optional = true)
+    void setLazyLoadDetection(@Named("hibernate.nplusone") boolean lazyLoadDetection) {
+        this.lazyLoadDetection = lazyLoadDetection;
+    }
+    
+    @Inject(optional = true)
+    void setLazyLoadThreshold(@Named("hibernate.nplusone.threshold") int lazyLoadThreshold) {
+        Preconditions.checkArgument(lazyLoadThreshold > 0, "Threshold must be positive");
+        this.lazyLoadThreshold = lazyLoadThreshold;
+    }
+    
+    @Inject(optional = true)
+    void setWatermark(@Named("hibernate.watermark") int watermark) {
+        Preconditions.checkArgument(watermark > 0, "Watermark must be positive");
+        this.watermark = watermark;
+    }
+    
+    @Inject(optional = true)
+    void setWatermarkClearing(@Named("hibernate.watermark.clear") boolean watermarkClearing) {
+        this.watermarkClearing = watermarkClearing;
+    }
+    
+    @Inject(optional = true)
+    void setFetchPlans(@Named("hibernate.fetchPlans") boolean fetchPlans) {
+        this.fetchPlans = fetchPlans;
+    }
+    
+    @Inject(optional = true)
+    void setFetchPlansAutoEnable(@Named("hibernate.fetchPlans.autoEnable") boolean fetchPlansAutoEnable) {
+        this.fetchPlansAutoEnable = fetchPlansAutoEnable;
+    }
+    
+    @Inject(optional = true)
+    void setFetchPlansMinSessions(@Named("hibernate.fetchPlans.minSessions") int fetchPlansMinSessions) {
+        Preconditions.checkArgument(fetchPlansMinSessions > 0, "Min sessions must be positive");
+        this.fetchPlansMinSessions = fetchPlansMinSessions;
+    }
+    
+    @Inject(optional = true)
+    void setFetchPlansMinRatio(@Named("hibernate.fetchPlans.minRatio") double fetchPlansMinRatio) {
+        Preconditions.checkArgument(fetchPlansMinRatio > 0d && fetchPlansMinRatio <= 1d, 
+            "Min ratio must be in (0, 1]");
+        this.fetchPlansMinRatio = fetchPlansMinRatio;
+    }
+    
+    @Inject(optional = true)
+    void setLeaks(@Named("hibernate.leaks") boolean leaks) {
+        this.leaks = leaks;
+    }
+    
+    @Inject(optional = true)
+    void setLeakThreshold(@Named("hibernate.leaks.threshold") long leakThreshold) {
+        Preconditions.checkArgument(leakThreshold > 0L, "Leak threshold must be positive");
+        this.leakThreshold = leakThreshold;
+    }
+    
+    @Inject(optional = true)
+    void setLeakStacks(@Named("hibernate.leaks.stacks") boolean leakStacks) {
+        this.leakStacks = leakStacks;
+    }
+    
+    @Inject(optional = true)
+    void setPooled(@Named("hibernate.pool") boolean pooled) {
+        this.pooled = pooled;
+    }
+    
+    @Inject(optional = true)
+    void setSlowSql(@Named("hibernate.slowSql") boolean slowSql) {
+        this.slowSql = slowSql;
+    }
+    
+    @Inject(optional = true)
+    void setSlowSqlThreshold(@Named("hibernate.slowSql.threshold") int slowSqlThreshold) {
+        Preconditions.checkArgument(slowSqlThreshold >= 0, "Threshold must not be negative");
+        this.slowSqlThreshold = slowSqlThreshold;
+    }
+    
+    @Inject(optional = true)
+    void setBatchSize(@Named("hibernate.jdbc.batchSize") int batchSize) {
+        Preconditions.checkArgument(batchSize >= 0, "Batch size must not be negative");
+        this.batchSize = batchSize;
+    }
+    
+    @Inject(optional = true)
+    void setChunkSize(@Named("hibernate.bulk.chunkSize") int chunkSize) {
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        this.chunkSize = chunkSize;
+    }
+    
+    @Inject(optional = true)
+    void setFetchSize(@Named("hibernate.stream.fetchSize") int fetchSize) {
+        // some drivers, e.g. MySQL's, stream only with Integer.MIN_VALUE
+        this.fetchSize = fetchSize;
+    }
+    
+    @Inject(optional = true)
+    void setInChunkSize(@Named("hibernate.getAll.chunkSize") int inChunkSize) {
+        Preconditions.checkArgument(inChunkSize > 0, "Chunk size must be positive");
+        this.inChunkSize = inChunkSize;
+    }
+    
+    @Inject(optional = true)
+    void setFanOutThreads(@Named("hibernate.fanOut.threads") int fanOutThreads) {
+        Preconditions.checkArgument(fanOutThreads > 0, "Threads must be positive");
+        this.fanOutThreads = fanOutThreads;
+    }
+    
+    @Inject(optional = true)
+    void setWarmUp(@Named("hibernate.warmup") boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+    
+    @Inject(optional = true)
+    void setWarmUpQueries(@Named("hibernate.warmup.queries") URL warmUpQueries) {
+        this.warmUpQueries = Preconditions.checkNotNull(warmUpQueries, "WarmUpQueries");
+    }
+    
+    @Inject(optional = true)
+    void setAsync(@Named("hibernate.async") boolean async) {
+        this.async = async;
+    }
+    
+    @Inject(optional = true)
+    void setTimeout(@Named("hibernate.async.timeout") long timeout) {
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+        this.timeout = timeout;
+    }
+    
+    @Inject(optional = true)
+    void setTimeoutUnit(@Named("hibernate.async.timeoutUnit") TimeUnit timeoutUnit) {
+        this.timeoutUnit = Preconditions.checkNotNull(timeoutUnit, "TimeoutUnit");
+    }
+    
     @Override
     public void initialize() {
-        final Configuration configuration = new AnnotationConfiguration();
+        mBeanService.register(startup, "name", name);
+        
+        if (latency != null) {
+            LOG.info("Recording session latencies");
+            mBeanService.register(latency, "name", name);
+        }
+        
+        if (queryCaching) {
+            LOG.info("Caching up to {} query results", queryCacheSize);
+            queryCache = new QueryResultCache(queryCacheSize);
+            mBeanService.register(queryCache, "name", name);
+            builtInListeners.putAll(Multimaps.forMap(queryCache.getListeners()));
+        }
+        
+        if (lazyLoadDetection) {
+            LOG.info("Reporting roles loaded lazily more than {} times per session", lazyLoadThreshold);
+            lazyLoadDetector = new LazyLoadDetector(lazyLoadThreshold);
+            mBeanService.register(lazyLoadDetector, "name", name);
+            builtInListeners.put("load", lazyLoadDetector);
+            builtInListeners.put("load-collection", lazyLoadDetector);
+            sessionListeners.add(lazyLoadDetector);
+        }
+        
+        if (watermark != null) {
+            LOG.info("{} sessions holding more than {} entities", 
+                watermarkClearing ? "Clearing" : "Reporting", watermark);
+            persistenceContextWatermark = new PersistenceContextWatermark(watermark, watermarkClearing);
+            mBeanService.register(persistenceContextWatermark, "name", name);
+            sessionListeners.add(persistenceContextWatermark);
+        }
+        
+        fanOutExecutor = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 60L, TimeUnit.SECONDS, 
+            new LinkedBlockingQueue<Runnable>(), 
+            new ThreadFactoryBuilder().setNameFormat("hibernate-fanout-%d").setDaemon(true).build()
+        );
+        fanOutExecutor.allowCoreThreadTimeOut(true);
+        
+        if (fetchPlans) {
+            LOG.info("Recording fetch plans{}", fetchPlansAutoEnable ? ", enabling matching fetch profiles" : "");
+            fetchPlanAdvisor = new FetchPlanAdvisor(fetchPlansMinSessions, fetchPlansMinRatio, fetchPlansAutoEnable);
+            mBeanService.register(fetchPlanAdvisor, "name", name);
+            builtInListeners.put("load-collection", fetchPlanAdvisor);
+            builtInListeners.put("post-load", fetchPlanAdvisor);
+            sessionListeners.add(fetchPlanAdvisor);
+        }
+        
+        if (statisticsMode == StatisticsMode.SAMPLED) {
+            LOG.info("Sampling statistics for one out of {} sessions", sampleRate);
+            sampled = new SampledStatistics(sampleRate, interceptor);
+            mBeanService.register(sampled, "name", name);
+            sessionListeners.add(sampled);
+        } else {
+            LOG.info("Statistics mode: {}", statisticsMode);
+        }
+        
+        if (leaks) {
+            LOG.info("Reporting sessions held longer than {}ms", leakThreshold);
+            leakDetector = new SessionLeakDetector(leakThreshold, leakStacks);
+            mBeanService.register(leakDetector, "name", name);
+            sessionListeners.add(leakDetector);
+        }
+        
+        task = new FutureTask<SessionFactory>(new Callable<SessionFactory>() {
+            
+            @Override
+            public SessionFactory call() {
+                return build();
+            }
+            
+        });
+        
+        if (async) {
+            LOG.info("Building session factory in background");
+            final Thread thread = new Thread(task, "hibernate-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            task.run();
+            // propagates failures to the lifecycle
+            await();
+        }
+    }
     
-        LOG.debug("Adding hibernate schema: {}", schema);
-        configuration.addURL(schema);
+    private SessionFactory build() {
+        final long start = System.nanoTime();
+        
+        if (propagateEvents) {
+            LOG.info("Registering event listeners");
+            binder = new EventListenerBinder(registry, LISTENERS, namespace, refresh, refreshUnit);
+            for (Entry<String, Object> entry : builtInListeners.entries()) {
+                binder.add(entry.getKey(), entry.getValue());
+            }
+            if (asyncEvents) {
+                LOG.info("Dispatching post-commit events asynchronously using {} worker(s)", asyncWorkers);
+                dispatcher = new AsyncEventDispatcher(asyncWorkers, Math.max(asyncCapacity, asyncWorkers), 
+                    asyncBatchSize, overflowPolicy);
+                mBeanService.register(dispatcher, "name", name);
+                binder.dispatch(dispatcher);
+            }
+        } else {
+            LOG.info("Events are not propagated through the registry");
+            if (asyncEvents) {
+                LOG.warn("Asynchronous post-commit events require hibernate.events.propagate, ignoring");
+            }
+        }
+        
+        final SessionFactory built = build(config, cacheFile);
         
-        LOG.debug("Adding hibernate config file: {}", config);
-        configuration.configure(config);
+        statistics.setSessionFactory(built);
+        statistics.setStatisticsEnabled(statisticsMode == StatisticsMode.FULL);
+        mBeanService.register(statistics, "name", name);
+        registerProviderStatistics(built, name);
+        
+        if (replicaConfig == null) {
+            LOG.info("No replica configured");
+        } else {
+            LOG.info("Building replica session factory");
+            final File replicaCacheFile = cacheFile == null ? null : new File(cacheFile.getPath() + ".replica");
+            replica = build(replicaConfig, replicaCacheFile);
+            replicaStatistics.setSessionFactory(replica);
+            replicaStatistics.setStatisticsEnabled(statisticsMode == StatisticsMode.FULL);
+            mBeanService.register(replicaStatistics, "name", name + "-replica");
+            registerProviderStatistics(replica, name + "-replica");
+            LOG.info("Routing read-only sessions to {} by default", readOnlyRoute);
+        }
+        
+        if (warmUp) {
+            startup.setWarmUpTime(TimeUnit.NANOSECONDS.toMillis(warmUpNanos));
+            LOG.info("Session factory warmed up in {}ms", startup.getWarmUpTime());
+        }
+        
+        startup.setBuildTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start - warmUpNanos));
+        LOG.info("Session factory built in {}ms", startup.getBuildTime());
+        
+        this.factory = built;
+        startup.setReady(true);
+        return built;
+    }
+    
+    private void registerProviderStatistics(SessionFactory sessionFactory, String jmxName) {
+        final SessionFactoryImplementor implementor = SessionFactoryImplementor.class.cast(sessionFactory);
+        final RegionFactory regionFactory = implementor.getSettings().getRegionFactory();
+        if (regionFactory instanceof BoundedRegionFactory) {
+            mBeanService.register(BoundedRegionFactory.class.cast(regionFactory).getStatistics(), "name", jmxName);
+        }
+        final ConnectionProvider connectionProvider = implementor.getConnectionProvider();
+        if (connectionProvider instanceof TimedConnectionProvider) {
+            final TimedConnectionProvider timed = TimedConnectionProvider.class.cast(connectionProvider);
+            mBeanService.register(timed.getStatistics(), "name", jmxName);
+            registerPool(timed.getDelegate(), jmxName);
+        } else {
+            registerPool(connectionProvider, jmxName);
+        }
+    }
+    
+    private void registerPool(ConnectionProvider connectionProvider, String jmxName) {
+        if (connectionProvider instanceof PooledConnectionProvider) {
+            mBeanService.register(PooledConnectionProvider.class.cast(connectionProvider).getPool(), "name", jmxName);
+        }
+    }
+    
+    private void unregisterProviderStatistics(SessionFactory sessionFactory, String jmxName) {
+        final SessionFactoryImplementor implementor = SessionFactoryImplementor.class.cast(sessionFactory);
+        final RegionFactory regionFactory = implementor.getSettings().getRegionFactory();
+        if (regionFactory instanceof BoundedRegionFactory) {
+            mBeanService.unregister(BoundedRegionFactory.class.cast(regionFactory).getStatistics(), "name", jmxName);
+        }
+        final ConnectionProvider connectionProvider = implementor.getConnectionProvider();
+        if (connectionProvider instanceof TimedConnectionProvider) {
+            final TimedConnectionProvider timed = TimedConnectionProvider.class.cast(connectionProvider);
+            mBeanService.unregister(timed.getStatistics(), "name", jmxName);
+            unregisterPool(timed.getDelegate(), jmxName);
+        } else {
+            unregisterPool(connectionProvider, jmxName);
+        }
+    }
     
+    private void unregisterPool(ConnectionProvider connectionProvider, String jmxName) {
+        if (connectionProvider instanceof PooledConnectionProvider) {
+            mBeanService.unregister(PooledConnectionProvider.class.cast(connectionProvider).getPool(), 
+                "name", jmxName);
+        }
+    }
+    
+    private SessionFactory build(File cfg, File cachedCfg) {
+        final Configuration configuration;
+        
+        if (cachedCfg == null) {
+            configuration = newConfiguration(cfg);
+        } else {
+            final ConfigurationCache cache = new ConfigurationCache(cachedCfg, cfg, schema);
+            final Configuration cached = cache.load();
+            if (cached == null) {
+                configuration = newConfiguration(cfg);
+                LOG.debug("Building mappings");
+                configuration.buildMappings();
+                cache.store(configuration);
+            } else {
+                configuration = cached;
+            }
+        }
+    
+        if (batchSize != null) {
+            LOG.info("Using JDBC batch size of {}", batchSize);
+            configuration.setProperty(Environment.STATEMENT_BATCH_SIZE, batchSize.toString());
+        }
+        
+        if (pooled) {
+            if (configuration.getProperty(Environment.CONNECTION_PROVIDER) != null || 
+                configuration.getProperty(Environment.DATASOURCE) != null) {
+                LOG.warn("Connection provider or datasource configured explicitly, not pooling connections");
+            } else {
+                LOG.info("Pooling connections using {}", PooledConnectionProvider.class.getSimpleName());
+                configuration.setProperty(Environment.CONNECTION_PROVIDER, PooledConnectionProvider.class.getName());
+            }
+        }
+        
+        if (slowSql) {
+            final String provider = configuration.getProperty(Environment.CONNECTION_PROVIDER);
+            if (!TimedConnectionProvider.class.getName().equals(provider)) {
+                LOG.info("Timing JDBC statements");
+                if (provider != null) {
+                    configuration.setProperty(TimedConnectionProvider.DELEGATE, provider);
+                }
+                configuration.setProperty(Environment.CONNECTION_PROVIDER, TimedConnectionProvider.class.getName());
+            }
+            if (slowSqlThreshold != null) {
+                configuration.setProperty(TimedConnectionProvider.THRESHOLD, slowSqlThreshold.toString());
+            }
+        }
+        
         if (interceptor == null) {
             LOG.info("No interceptor configured");
         } else {
@@ -182,41 +773,258 @@ public final class DefaultHibernateService implements HibernateService, Initiali
             configuration.setInterceptor(interceptor);
         }
         
-        if (propagateEvents) {
-            LOG.info("Registering event listeners");
-            for (Entry<String, Class<?>> entry : LISTENERS.entrySet()) {
-                final String event = entry.getKey();
-                final Class<?> type = entry.getValue();
-                final Key<?> key = Key.get(type, event);
-                final Object listener = registry.proxy(key);
-                LOG.info("Registering {} for {}", listener, event);
-                configuration.setListener(event, listener);
-            }
+        if (binder != null) {
+            binder.configure(configuration);
         } else {
-            LOG.info("Events are not propagated through the registry");
+            for (String event : builtInListeners.keySet()) {
+                EventListenerBinder.prepend(configuration, event, builtInListeners.get(event));
+            }
         }
         
         LOG.debug("Building session factory");
-        this.factory = configuration.buildSessionFactory();
+        final SessionFactory built = configuration.buildSessionFactory();
             
-        statistics.setSessionFactory(factory);
-        statistics.setStatisticsEnabled(true);
-        mBeanService.register(statistics, "name", name);
+        if (binder != null) {
+            binder.bind(built);
+        }
+        
+        if (fetchPlanAdvisor != null) {
+            final List<String> profiles = Lists.newArrayList();
+            final Iterator<?> iterator = configuration.iterateFetchProfiles();
+            while (iterator.hasNext()) {
+                profiles.add(FetchProfile.class.cast(iterator.next()).getName());
+            }
+            fetchPlanAdvisor.addProfiles(built, profiles);
+        }
+        
+        if (warmUp) {
+            final long start = System.nanoTime();
+            LOG.info("Warming up session factory");
+            new WarmUp(built, readWarmUpQueries()).run();
+            warmUpNanos += System.nanoTime() - start;
+        }
+        
+        return built;
+    }
+    
+    private List<String> readWarmUpQueries() {
+        if (warmUpQueries == null) return Collections.emptyList();
+        final List<String> queries = Lists.newArrayList();
+        try {
+            for (String line : Resources.readLines(warmUpQueries, Charsets.UTF_8)) {
+                if (line.trim().length() == 0 || line.trim().startsWith("#")) continue;
+                queries.add(line.trim());
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to read warm-up queries from " + warmUpQueries, e);
+        }
+        return queries;
+    }
+    
+    private Configuration newConfiguration(File cfg) {
+        final Configuration configuration = new AnnotationConfiguration();
+        
+        LOG.debug("Adding hibernate schema: {}", schema);
+        configuration.addURL(schema);
+        
+        LOG.debug("Adding hibernate config file: {}", cfg);
+        configuration.configure(cfg);
+        
+        return configuration;
+    }
+    
+    private SessionFactory await() {
+        Preconditions.checkState(task != null, "%s has not been initialized", this);
+        try {
+            return task.get(timeout, timeoutUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the session factory", e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(String.format(
+                "Session factory not ready after %s %s", timeout, timeoutUnit), e);
+        }
     }
     
     @Override
     public SessionFactory getSessionFactory() {
-        return factory;
+        final SessionFactory current = factory;
+        return current == null ? await() : current;
     }
     
     @Override
     public Session get() {
-        return new DestroyableSession(factory.openSession());
+        return open(getSessionFactory(), false);
+    }
+    
+    @Override
+    public Session getReadOnlySession() {
+        return getReadOnlySession(readOnlyRoute);
+    }
+    
+    @Override
+    public Session getReadOnlySession(Route route) {
+        Preconditions.checkNotNull(route, "Route");
+        return open(factoryOf(route), true);
+    }
+    
+    @Override
+    public Session getReplicaSession() {
+        return open(factoryOf(Route.REPLICA), true);
+    }
+    
+    private SessionFactory factoryOf(Route target) {
+        final SessionFactory primary = getSessionFactory();
+        return target == Route.REPLICA && replica != null ? replica : primary;
+    }
+    
+    private Session open(SessionFactory target, boolean readOnly) {
+        if (binder != null) {
+            binder.refreshIfStale();
+        }
+        final Interceptor sessionInterceptor = sampled != null && sampled.sample() ? sampled.getInterceptor() : null;
+        final DestroyableSession session;
+        if (readOnly) {
+            session = new ReadOnlySession(target, sessionInterceptor, sessionListeners);
+        } else {
+            session = new DestroyableSession(target, sessionInterceptor, sessionListeners);
+        }
+        if (queryCache == null || target == replica) {
+            return latency == null ? session : new InstrumentedSession(session, latency);
+        } else {
+            // replicas may lag behind the invalidations
+            final CachingSession caching = new CachingSession(session, queryCache);
+            return latency == null ? caching : new InstrumentedSession(caching, latency);
+        }
+    }
+    
+    @Override
+    public StatelessSession getStatelessSession() {
+        return new DestroyableStatelessSession(getSessionFactory(), queryCache);
+    }
+    
+    @Override
+    public BulkWriteResult persistAll(Iterable<?> entities) {
+        final SessionFactory target = getSessionFactory();
+        return new BulkWrite(target, chunkSizeOf(target), false).run(entities);
+    }
+    
+    @Override
+    public BulkWriteResult mergeAll(Iterable<?> entities) {
+        final SessionFactory target = getSessionFactory();
+        return new BulkWrite(target, chunkSizeOf(target), true).run(entities);
+    }
+    
+    private int chunkSizeOf(SessionFactory target) {
+        if (chunkSize != null) return chunkSize;
+        final int jdbcBatchSize = SessionFactoryImplementor.class.cast(target).getSettings().getJdbcBatchSize();
+        return jdbcBatchSize > 0 ? jdbcBatchSize : DEFAULT_CHUNK_SIZE;
+    }
+    
+    @Override
+    public <T> StreamingResults<T> stream(Session session, Query query) {
+        Preconditions.checkNotNull(session, "Session");
+        Preconditions.checkNotNull(query, "Query");
+        query.setFetchSize(fetchSize);
+        final ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        return new StreamingResults<T>(results, session, sweepIntervalOf(fetchSize));
+    }
+    
+    @Override
+    public <T> StreamingResults<T> stream(Session session, Criteria criteria) {
+        Preconditions.checkNotNull(session, "Session");
+        Preconditions.checkNotNull(criteria, "Criteria");
+        criteria.setFetchSize(fetchSize);
+        final ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+        return new StreamingResults<T>(results, session, sweepIntervalOf(fetchSize));
+    }
+    
+    private static int sweepIntervalOf(int fetchSize) {
+        return fetchSize > 0 ? fetchSize : DEFAULT_CHUNK_SIZE;
+    }
+    
+    @Override
+    public <T> Map<Serializable, T> getAll(Session session, Class<T> type, Collection<? extends Serializable> ids) {
+        Preconditions.checkNotNull(session, "Session");
+        final SessionFactoryImplementor target = SessionFactoryImplementor.class.cast(session.getSessionFactory());
+        final int size = inChunkSize == null ? MultiGet.chunkSizeOf(target.getDialect()) : inChunkSize;
+        return new MultiGet(size).run(session, type, ids);
+    }
+    
+    @Override
+    public <T> List<T> fanOut(List<? extends SessionCallable<? extends T>> callables, long timeout, TimeUnit unit)
+        throws TimeoutException {
+        Preconditions.checkState(fanOutExecutor != null, "%s has not been initialized", this);
+        final SessionFactory target = factoryOf(readOnlyRoute);
+        return new FanOut(fanOutExecutor, new Provider<Session>() {
+            
+            @Override
+            public Session get() {
+                return open(target, true);
+            }
+            
+        }).run(callables, timeout, unit);
     }
     
     @Override
     public void dispose() throws LifecycleException {
-        mBeanService.unregister(statistics, "name", name);
+        if (startup.isReady()) {
+            mBeanService.unregister(statistics, "name", name);
+            unregisterProviderStatistics(factory, name);
+            if (replica != null) {
+                mBeanService.unregister(replicaStatistics, "name", name + "-replica");
+                unregisterProviderStatistics(replica, name + "-replica");
+            }
+        } else if (task != null) {
+            task.cancel(true);
+        }
+        if (sampled != null) {
+            mBeanService.unregister(sampled, "name", name);
+        }
+        if (latency != null) {
+            mBeanService.unregister(latency, "name", name);
+        }
+        if (queryCache != null) {
+            mBeanService.unregister(queryCache, "name", name);
+        }
+        if (lazyLoadDetector != null) {
+            mBeanService.unregister(lazyLoadDetector, "name", name);
+        }
+        if (persistenceContextWatermark != null) {
+            mBeanService.unregister(persistenceContextWatermark, "name", name);
+        }
+        if (fetchPlanAdvisor != null) {
+            mBeanService.unregister(fetchPlanAdvisor, "name", name);
+        }
+        if (leakDetector != null) {
+            leakDetector.close();
+            mBeanService.unregister(leakDetector, "name", name);
+        }
+        if (dispatcher != null) {
+            dispatcher.close(DISPATCHER_TIMEOUT, TimeUnit.SECONDS);
+            mBeanService.unregister(dispatcher, "name", name);
+        }
+        if (fanOutExecutor != null) {
+            fanOutExecutor.shutdownNow();
+        }
+        if (startup.isReady()) {
+            // closes the connection providers, including their pools
+            close(factory);
+            if (replica != null) {
+                close(replica);
+            }
+        }
+        mBeanService.unregister(startup, "name", name);
+    }
+    
+    private void close(SessionFactory target) {
+        try {
+            target.close();
+        } catch (HibernateException e) {
+            LOG.warn("Unable to close session factory " + target, e);
+        }
     }
     
 }
@@ -16,35 +16,145 @@
 
 package de.cosmocode.palava.jpa.hibernate;
 
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Interceptor;
 import org.hibernate.Session;
+import org.hibernate.SessionException;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
 import de.cosmocode.palava.scope.Destroyable;
 
 /**
- * {@link Destroyable} version of a Hibernate {@link Session}.
+ * {@link Destroyable} version of a Hibernate {@link Session}. The underlying
+ * session is opened lazily on first use, requests which never touch the
+ * database don't pay for it. Once destroyed, the session can't be used anymore.
  *
  * @author Willi Schoenborn
  */
-final class DestroyableSession extends ForwardingSession implements Destroyable {
+class DestroyableSession extends ForwardingSession implements Destroyable {
 
     private static final long serialVersionUID = -3229611777799970807L;
     
-    private final Session session;
+    private static final int CHECKPOINT_INTERVAL = 256;
+    
+    private final SessionFactory factory;
+    
+    private final Interceptor interceptor;
+    
+    private final List<SessionListener> listeners;
+    
+    private Session session;
+    
+    private int calls;
+    
+    private boolean destroyed;
     
-    public DestroyableSession(Session session) {
-        this.session = Preconditions.checkNotNull(session, "Session");
+    public DestroyableSession(SessionFactory factory) {
+        this(factory, null);
+    }
+    
+    /**
+     * Creates a new {@link DestroyableSession} which will be opened using the given interceptor.
+     * 
+     * @param factory the session factory
+     * @param interceptor the session scoped interceptor, may be null
+     */
+    public DestroyableSession(SessionFactory factory, Interceptor interceptor) {
+        this(factory, interceptor, ImmutableList.<SessionListener>of());
+    }
+    
+    /**
+     * Creates a new {@link DestroyableSession} which will be opened using the given interceptor
+     * and notifies the given listeners about opening and destroying the underlying session.
+     * 
+     * @param factory the session factory
+     * @param interceptor the session scoped interceptor, may be null
+     * @param listeners the session listeners
+     */
+    public DestroyableSession(SessionFactory factory, Interceptor interceptor, 
+        List<? extends SessionListener> listeners) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        this.interceptor = interceptor;
+        this.listeners = ImmutableList.copyOf(listeners);
     }
     
     @Override
-    protected Session delegate() {
+    protected final Session delegate() {
+        if (destroyed) {
+            throw new SessionException("Session has already been destroyed");
+        } else if (session == null) {
+            session = open();
+            for (SessionListener listener : listeners) {
+                listener.opened(session);
+            }
+        } else if (!listeners.isEmpty() && ++calls == CHECKPOINT_INTERVAL) {
+            calls = 0;
+            checkpoint(false);
+        }
         return session;
     }
+    
+    private void checkpoint(boolean boundary) {
+        for (SessionListener listener : listeners) {
+            listener.checkpoint(session, boundary);
+        }
+    }
+    
+    /**
+     * Opens the underlying session. Called at most once, on first use.
+     * Sub classes may override this method to configure the session.
+     * 
+     * @return a new session
+     */
+    protected Session open() {
+        return interceptor == null ? factory.openSession() : factory.openSession(interceptor);
+    }
+    
+    /**
+     * Provides the underlying session without opening it.
+     * 
+     * @return the underlying session or null if it has not been opened yet
+     */
+    protected final Session opened() {
+        return session;
+    }
+    
+    @Override
+    public Transaction beginTransaction() throws HibernateException {
+        final Session current = delegate();
+        // beginning an active transaction again is a no-op, not a boundary
+        checkpoint(!current.getTransaction().isActive());
+        return current.beginTransaction();
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return !destroyed && (session == null || session.isOpen());
+    }
+    
+    @Override
+    public SessionFactory getSessionFactory() {
+        return factory;
+    }
 
     @Override
     public void destroy() {
-        if (session.isOpen()) session.close();
+        if (destroyed) return;
+        destroyed = true;
+        if (session == null) return;
+        try {
+            for (SessionListener listener : listeners) {
+                listener.destroyed(session);
+            }
+        } finally {
+            if (session.isOpen()) session.close();
+        }
     }
 
 }
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.SessionException;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.SessionImplementor;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * {@link Destroyable} version of a Hibernate {@link StatelessSession}. The underlying
+ * session is opened lazily on first use. Once destroyed, the session can't be used anymore.
+ * Stateless sessions fire no events, so if a {@link QueryResultCache} is given, the tables
+ * of inserted, updated and deleted entities and of bulk and native updates are invalidated
+ * once the transaction commits.
+ *
+ * @author Willi Schoenborn
+ */
+final class DestroyableStatelessSession extends ForwardingStatelessSession implements Destroyable {
+
+    private static final long serialVersionUID = -7706426271870722164L;
+    
+    private final SessionFactory factory;
+    
+    private final QueryResultCache cache;
+    
+    private StatelessSession session;
+    
+    private boolean destroyed;
+    
+    public DestroyableStatelessSession(SessionFactory factory, QueryResultCache cache) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        this.cache = cache;
+    }
+    
+    @Override
+    protected StatelessSession delegate() {
+        if (destroyed) {
+            throw new SessionException("Session has already been destroyed");
+        } else if (session == null) {
+            session = factory.openStatelessSession();
+        }
+        return session;
+    }
+    
+    @Override
+    public Serializable insert(Object entity) {
+        final Serializable id = super.insert(entity);
+        written(null, entity);
+        return id;
+    }
+    
+    @Override
+    public Serializable insert(String entityName, Object entity) {
+        final Serializable id = super.insert(entityName, entity);
+        written(entityName, entity);
+        return id;
+    }
+    
+    @Override
+    public void update(Object entity) {
+        super.update(entity);
+        written(null, entity);
+    }
+    
+    @Override
+    public void update(String entityName, Object entity) {
+        super.update(entityName, entity);
+        written(entityName, entity);
+    }
+    
+    @Override
+    public void delete(Object entity) {
+        super.delete(entity);
+        written(null, entity);
+    }
+    
+    @Override
+    public void delete(String entityName, Object entity) {
+        super.delete(entityName, entity);
+        written(entityName, entity);
+    }
+    
+    private void written(String entityName, Object entity) {
+        if (cache == null) return;
+        final SessionImplementor implementor = SessionImplementor.class.cast(delegate());
+        cache.written(implementor.getJDBCContext().getTransaction(), 
+            implementor.getEntityPersister(entityName, entity).getQuerySpaces(), true);
+    }
+    
+    @Override
+    public Query createQuery(String queryString) {
+        final Query query = super.createQuery(queryString);
+        if (cache == null) return query;
+        return new InvalidatingQuery(query, SessionImplementor.class.cast(delegate()), cache);
+    }
+    
+    @Override
+    public Query getNamedQuery(String queryName) {
+        final Query query = super.getNamedQuery(queryName);
+        if (cache == null) return query;
+        final SessionImplementor implementor = SessionImplementor.class.cast(delegate());
+        if (query instanceof SQLQuery) {
+            return new InvalidatingSQLQuery(SQLQuery.class.cast(query), implementor, cache, 
+                InvalidatingSQLQuery.spacesOf(implementor.getFactory(), queryName));
+        } else {
+            return new InvalidatingQuery(query, implementor, cache);
+        }
+    }
+    
+    @Override
+    public SQLQuery createSQLQuery(String queryString) throws HibernateException {
+        final SQLQuery query = super.createSQLQuery(queryString);
+        if (cache == null) return query;
+        return new InvalidatingSQLQuery(query, SessionImplementor.class.cast(delegate()), cache, 
+            Collections.<String>emptySet());
+    }
+    
+    @Override
+    public void destroy() {
+        if (destroyed) return;
+        destroyed = true;
+        if (session == null) return;
+        if (SessionImplementor.class.cast(session).isClosed()) return;
+        session.close();
+    }
+
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.EventListeners;
+import org.hibernate.impl.SessionFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.core.Registry.Key;
+
+/**
+ * Binds the listeners registered in the {@link Registry} directly into Hibernate's
+ * listener chains, instead of dispatching every event through a registry proxy.
+ * Events without listeners get an empty chain. Chains are resolved again 
+ * by {@link #refresh()} and swapped on the live session factories if the registry changed.
+ *
+ * @author Willi Schoenborn
+ */
+final class EventListenerBinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventListenerBinder.class);
+    
+    private static final ImmutableMap<String, String> SETTERS;
+    
+    static {
+        final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        
+        builder.put("auto-flush", "setAutoFlushEventListeners");
+        builder.put("merge", "setMergeEventListeners");
+        builder.put("create", "setPersistEventListeners");
+        builder.put("create-onflush", "setPersistOnFlushEventListeners");
+        builder.put("delete", "setDeleteEventListeners");
+        builder.put("dirty-check", "setDirtyCheckEventListeners");
+        builder.put("evict", "setEvictEventListeners");
+        builder.put("flush", "setFlushEventListeners");
+        builder.put("flush-entity", "setFlushEntityEventListeners");
+        builder.put("load", "setLoadEventListeners");
+        builder.put("load-collection", "setInitializeCollectionEventListeners");
+        builder.put("lock", "setLockEventListeners");
+        builder.put("refresh", "setRefreshEventListeners");
+        builder.put("replicate", "setReplicateEventListeners");
+        builder.put("save-update", "setSaveOrUpdateEventListeners");
+        builder.put("save", "setSaveEventListeners");
+        builder.put("update", "setUpdateEventListeners");
+        builder.put("pre-load", "setPreLoadEventListeners");
+        builder.put("pre-update", "setPreUpdateEventListeners");
+        builder.put("pre-delete", "setPreDeleteEventListeners");
+        builder.put("pre-insert", "setPreInsertEventListeners");
+        builder.put("pre-collection-recreate", "setPreCollectionRecreateEventListeners");
+        builder.put("pre-collection-remove", "setPreCollectionRemoveEventListeners");
+        builder.put("pre-collection-update", "setPreCollectionUpdateEventListeners");
+        builder.put("post-load", "setPostLoadEventListeners");
+        builder.put("post-update", "setPostUpdateEventListeners");
+        builder.put("post-delete", "setPostDeleteEventListeners");
+        builder.put("post-insert", "setPostInsertEventListeners");
+        builder.put("post-commit-update", "setPostCommitUpdateEventListeners");
+        builder.put("post-commit-delete", "setPostCommitDeleteEventListeners");
+        builder.put("post-commit-insert", "setPostCommitInsertEventListeners");
+        builder.put("post-collection-recreate", "setPostCollectionRecreateEventListeners");
+        builder.put("post-collection-remove", "setPostCollectionRemoveEventListeners");
+        builder.put("post-collection-update", "setPostCollectionUpdateEventListeners");
+        
+        SETTERS = builder.build();
+    }
+    
+    private final Registry registry;
+    
+    private final Map<String, Class<?>> events;
+    
+    private final String namespace;
+    
+    private final long interval;
+    
+    private final AtomicLong lastRefresh = new AtomicLong(System.nanoTime());
+    
+    private final Map<String, Object[]> chains = Maps.newHashMap();
+    
+    private final ListMultimap<String, Object> fixed = ArrayListMultimap.create();
+    
+    private final List<EventListeners> live = Lists.newArrayList();
+    
+    private AsyncEventDispatcher dispatcher;
+    
+    /**
+     * Creates a new {@link EventListenerBinder}.
+     * 
+     * @param registry the registry to look up listeners in
+     * @param events all supported events and their listener types
+     * @param namespace prefix of the registry keys' meta data, may be null
+     * @param interval the minimum interval between two refreshes
+     * @param unit the unit of interval
+     */
+    public EventListenerBinder(Registry registry, Map<String, Class<?>> events, String namespace, 
+        long interval, TimeUnit unit) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+        this.events = ImmutableMap.copyOf(events);
+        this.namespace = namespace;
+        Preconditions.checkArgument(interval >= 0, "Interval must not be negative");
+        this.interval = Preconditions.checkNotNull(unit, "Unit").toNanos(interval);
+    }
+    
+    /**
+     * Adds a listener which is always bound in front of the listeners found in the registry.
+     * Has to be called before {@link #configure(Configuration)}.
+     * 
+     * @param event the event
+     * @param listener the listener
+     */
+    public void add(String event, Object listener) {
+        Preconditions.checkArgument(events.containsKey(event), "Unknown event %s", event);
+        Preconditions.checkArgument(events.get(event).isInstance(listener), "%s is no %s", listener, event);
+        synchronized (chains) {
+            fixed.put(event, listener);
+        }
+    }
+    
+    /**
+     * Routes the registry's listeners of the post-commit events through the given dispatcher.
+     * Fixed listeners are still called synchronously. Has to be called before 
+     * {@link #configure(Configuration)}.
+     * 
+     * @param asyncDispatcher the dispatcher
+     */
+    public void dispatch(AsyncEventDispatcher asyncDispatcher) {
+        synchronized (chains) {
+            this.dispatcher = Preconditions.checkNotNull(asyncDispatcher, "Dispatcher");
+        }
+    }
+    
+    /**
+     * Puts listeners in front of the current listener chain of the given configuration.
+     * 
+     * @param configuration the configuration
+     * @param event the event
+     * @param listeners the listeners
+     */
+    public static void prepend(Configuration configuration, String event, List<?> listeners) {
+        Preconditions.checkNotNull(configuration, "Configuration");
+        Preconditions.checkNotNull(listeners, "Listeners");
+        final String setter = SETTERS.get(event);
+        Preconditions.checkArgument(setter != null, "Unknown event %s", event);
+        try {
+            final Method getter = EventListeners.class.getMethod(setter.replaceFirst("set", "get"));
+            final Object[] current = (Object[]) getter.invoke(configuration.getEventListeners());
+            final Object[] chain = (Object[]) Array.newInstance(current.getClass().getComponentType(), 
+                listeners.size() + current.length);
+            listeners.toArray(chain);
+            System.arraycopy(current, 0, chain, listeners.size(), current.length);
+            configuration.setListeners(event, chain);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /**
+     * Resolves all listener chains and sets them on the given configuration.
+     * 
+     * @param configuration the configuration
+     */
+    public void configure(Configuration configuration) {
+        Preconditions.checkNotNull(configuration, "Configuration");
+        synchronized (chains) {
+            for (Entry<String, Class<?>> entry : events.entrySet()) {
+                final String event = entry.getKey();
+                final Object[] chain = resolve(event, entry.getValue());
+                if (chain.length == 0) {
+                    LOG.debug("No listeners registered for {}", event);
+                } else {
+                    LOG.info("Registering {} listener(s) for {}", chain.length, event);
+                }
+                chains.put(event, chain);
+                configuration.setListeners(event, chain);
+            }
+        }
+    }
+    
+    /**
+     * Binds this binder to a session factory built from a configured configuration,
+     * enabling {@link #refresh()}. Several session factories may be bound.
+     * 
+     * @param factory the session factory
+     */
+    public void bind(SessionFactory factory) {
+        Preconditions.checkNotNull(factory, "Factory");
+        synchronized (chains) {
+            live.add(SessionFactoryImpl.class.cast(factory).getEventListeners());
+        }
+    }
+    
+    /**
+     * Calls {@link #refresh()} if the last refresh happened longer than the configured
+     * interval ago. Only one of several concurrent callers will do the refresh.
+     */
+    public void refreshIfStale() {
+        final long last = lastRefresh.get();
+        final long now = System.nanoTime();
+        if (now - last < interval) return;
+        if (lastRefresh.compareAndSet(last, now)) {
+            refresh();
+        }
+    }
+    
+    /**
+     * Resolves all listener chains again and replaces those which changed
+     * on the bound session factories.
+     */
+    public void refresh() {
+        synchronized (chains) {
+            if (live.isEmpty()) return;
+            for (Entry<String, Class<?>> entry : events.entrySet()) {
+                final String event = entry.getKey();
+                final Object[] chain = resolve(event, entry.getValue());
+                if (sameElements(chain, chains.get(event))) continue;
+                LOG.info("Listeners for {} changed, rebinding {} listener(s)", event, chain.length);
+                set(event, chain);
+                chains.put(event, chain);
+            }
+        }
+    }
+    
+    private Object[] resolve(String event, Class<?> type) {
+        final List<Object> listeners = Lists.newArrayList(fixed.get(event));
+        final String meta = namespace == null ? event : namespace + "." + event;
+        final List<Object> registered = Lists.newArrayList();
+        for (Object listener : registry.getListeners(Key.get(type, meta))) {
+            registered.add(listener);
+        }
+        if (dispatcher != null && AsyncEventDispatcher.EVENTS.contains(event)) {
+            dispatcher.setListeners(event, registered);
+            if (!registered.isEmpty()) listeners.add(dispatcher);
+        } else {
+            listeners.addAll(registered);
+        }
+        final Object[] chain = (Object[]) Array.newInstance(type, listeners.size());
+        return listeners.toArray(chain);
+    }
+    
+    private static boolean sameElements(Object[] left, Object[] right) {
+        if (right == null || left.length != right.length) return false;
+        for (int i = 0; i < left.length; i++) {
+            if (left[i] != right[i]) return false;
+        }
+        return true;
+    }
+    
+    private void set(String event, Object[] chain) {
+        final String setter = SETTERS.get(event);
+        Preconditions.checkState(setter != null, "Unknown event %s", event);
+        try {
+            final Method method = EventListeners.class.getMethod(setter, chain.getClass());
+            for (EventListeners listeners : live) {
+                method.invoke(listeners, new Object[] {chain});
+            }
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+}
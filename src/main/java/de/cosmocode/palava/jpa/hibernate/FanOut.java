@@ -0,0 +1,204 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * Runs several {@link SessionCallable}s in parallel, each in its own read-only session,
+ * within a shared deadline. The first failure or the deadline cancels all callables:
+ * callables which didn't start yet never run, running callables get their current JDBC
+ * statement cancelled and their session fails on its next use. Running callables are not
+ * interrupted, they keep their thread until they return or fail. Callables must not fan out
+ * themselves, they would wait for threads of the same bounded pool they occupy.
+ *
+ * @author Willi Schoenborn
+ */
+final class FanOut {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FanOut.class);
+    
+    private static final ThreadLocal<Boolean> RUNNING = new ThreadLocal<Boolean>();
+    
+    private final Executor executor;
+    
+    private final Provider<Session> sessions;
+    
+    /**
+     * Creates a new {@link FanOut}.
+     * 
+     * @param executor the executor running the callables
+     * @param sessions produces a new {@link Destroyable} session per callable
+     */
+    public FanOut(Executor executor, Provider<Session> sessions) {
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        this.sessions = Preconditions.checkNotNull(sessions, "Sessions");
+    }
+    
+    /**
+     * Runs the given callables.
+     * 
+     * @param <T> the result type
+     * @param callables the callables
+     * @param timeout the maximum time to wait for all results
+     * @param unit the unit of timeout
+     * @return the results, in the order of the callables
+     * @throws TimeoutException if not all callables completed in time
+     * @throws IllegalStateException if called from within a callable
+     */
+    public <T> List<T> run(List<? extends SessionCallable<? extends T>> callables, long timeout, TimeUnit unit) 
+        throws TimeoutException {
+        Preconditions.checkNotNull(callables, "Callables");
+        Preconditions.checkNotNull(unit, "Unit");
+        Preconditions.checkState(RUNNING.get() == null, "Nested fan out may deadlock the executor");
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        
+        final CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        final List<Task<T>> tasks = Lists.newArrayListWithCapacity(callables.size());
+        final List<Future<T>> futures = Lists.newArrayListWithCapacity(callables.size());
+        
+        try {
+            for (SessionCallable<? extends T> callable : callables) {
+                final Task<T> task = new Task<T>(Preconditions.checkNotNull(callable, "Callable"));
+                tasks.add(task);
+                futures.add(completion.submit(task));
+            }
+            for (int done = 0; done < futures.size(); done++) {
+                final Future<T> future = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    throw new TimeoutException(String.format("%s of %s queries not completed within %s %s", 
+                        futures.size() - done, futures.size(), timeout, unit));
+                }
+                // fails fast
+                future.get();
+            }
+            final List<T> results = Lists.newArrayListWithCapacity(futures.size());
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for queries", e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (int i = 0; i < futures.size(); i++) {
+                if (futures.get(i).isDone()) continue;
+                tasks.get(i).cancel();
+                // interrupting JDBC I/O may break the connection
+                futures.get(i).cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Runs a single callable in its own session.
+     *
+     * @author Willi Schoenborn
+     * @param <T> the result type
+     */
+    private final class Task<T> implements Callable<T> {
+        
+        private final SessionCallable<? extends T> callable;
+        
+        private volatile Session session;
+        
+        private volatile boolean cancelled;
+        
+        public Task(SessionCallable<? extends T> callable) {
+            this.callable = callable;
+        }
+        
+        @Override
+        public T call() throws Exception {
+            RUNNING.set(Boolean.TRUE);
+            try {
+                final Session current = sessions.get();
+                // opens the underlying session on this thread
+                session = ForwardingSession.unwrap(current);
+                try {
+                    return callable.call(new Guard(current));
+                } finally {
+                    session = null;
+                    Destroyable.class.cast(current).destroy();
+                }
+            } finally {
+                RUNNING.remove();
+            }
+        }
+        
+        public void cancel() {
+            cancelled = true;
+            final Session current = session;
+            if (current == null) return;
+            try {
+                current.cancelQuery();
+            } catch (HibernateException e) {
+                LOG.debug("Unable to cancel query", e);
+            }
+        }
+        
+        /**
+         * Fails every use of the session once the task has been cancelled.
+         *
+         * @author Willi Schoenborn
+         */
+        private final class Guard extends ForwardingSession {
+            
+            private static final long serialVersionUID = 2940683658385736621L;
+            
+            private final Session current;
+            
+            public Guard(Session current) {
+                this.current = current;
+            }
+            
+            @Override
+            protected Session delegate() {
+                if (cancelled) {
+                    throw new SessionException("Fan out has been cancelled");
+                }
+                return current;
+            }
+            
+        }
+        
+    }
+    
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.profile.FetchProfile;
+import org.hibernate.event.InitializeCollectionEvent;
+import org.hibernate.event.InitializeCollectionEventListener;
+import org.hibernate.event.PostLoadEvent;
+import org.hibernate.event.PostLoadEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+/**
+ * Suggests fetch plans by recording, per call site, which collections get initialized
+ * after their owners have been loaded. A collection is suggested for a call site if it got
+ * initialized for at least the minimum ratio of its loaded owners. Optionally, the largest
+ * fetch profile whose fetches are all suggested gets enabled for units of work started at
+ * that call site. Units of work with such a profile are not recorded, so suggestions stay
+ * stable until {@link #clear()}. Has to be bound in front of Hibernate's default listeners.
+ * <p>
+ *   Sessions usually live as long as their connection and serve many commands, so loads are
+ *   attributed per unit of work, not per session. A unit of work starts when the session is
+ *   opened or a transaction begins, or, outside of transactions, when a periodic checkpoint
+ *   sees a different call site. Its profile is disabled again when the next one starts.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class FetchPlanAdvisor implements InitializeCollectionEventListener, PostLoadEventListener,
+    SessionListener, FetchPlanAdvisorMBean {
+
+    private static final long serialVersionUID = -6436102539017208405L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FetchPlanAdvisor.class);
+    
+    private static final int MAX_CALL_SITES = 1000;
+    
+    private static final String OTHER = "other";
+    
+    private static final ImmutableList<String> INFRASTRUCTURE = ImmutableList.of(
+        "java.", "javax.", "sun.", "com.sun.", "jdk.", "$Proxy", "com.google.", "org.hibernate.",
+        "de.cosmocode.palava.core.", "de.cosmocode.palava.scope.", "de.cosmocode.palava.ipc.", 
+        "de.cosmocode.palava.jpa."
+    );
+    
+    private final ConcurrentMap<Session, Recording> sessions = new MapMaker().weakKeys().makeMap();
+    
+    private final ConcurrentMap<String, CallSite> callSites = new MapMaker().makeMap();
+    
+    private final ConcurrentMap<SessionFactory, Map<String, Set<String>>> profiles = 
+        new MapMaker().weakKeys().makeMap();
+    
+    private final AtomicLong enabled = new AtomicLong();
+    
+    private volatile int minSessions;
+    
+    private volatile double minRatio;
+    
+    private volatile boolean autoEnable;
+    
+    public FetchPlanAdvisor(int minSessions, double minRatio, boolean autoEnable) {
+        setMinSessions(minSessions);
+        setMinRatio(minRatio);
+        this.autoEnable = autoEnable;
+    }
+    
+    /**
+     * Adds the given fetch profiles of a session factory as candidates for automatic enabling.
+     * 
+     * @param factory the session factory
+     * @param names the names of the profiles defined on factory
+     */
+    public void addProfiles(SessionFactory factory, Iterable<String> names) {
+        final SessionFactoryImplementor implementor = SessionFactoryImplementor.class.cast(factory);
+        final ImmutableMap.Builder<String, Set<String>> builder = ImmutableMap.builder();
+        for (String name : names) {
+            final FetchProfile profile = implementor.getFetchProfile(name);
+            if (profile == null) continue;
+            final ImmutableSet.Builder<String> roles = ImmutableSet.builder();
+            for (Object role : profile.getFetches().keySet()) {
+                roles.add(String.valueOf(role));
+            }
+            builder.put(name, roles.build());
+        }
+        profiles.put(factory, builder.build());
+    }
+    
+    /**
+     * Lazy loads of a single unit of work.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Recording {
+        
+        private final String callSite;
+        
+        // null unless a profile has been enabled for this unit of work
+        private final String profile;
+        
+        private final Map<String, int[]> loads = Maps.newHashMap();
+        
+        private final Map<String, int[]> initializations = Maps.newHashMap();
+        
+        private final Map<String, String> owners = Maps.newHashMap();
+        
+        public Recording(String callSite, String profile) {
+            this.callSite = callSite;
+            this.profile = profile;
+        }
+        
+        public boolean isEmpty() {
+            return loads.isEmpty() && initializations.isEmpty();
+        }
+        
+        private static void increment(Map<String, int[]> counts, String key) {
+            final int[] count = counts.get(key);
+            if (count == null) {
+                counts.put(key, new int[] {1});
+            } else {
+                count[0]++;
+            }
+        }
+        
+    }
+    
+    @Override
+    public void opened(Session session) {
+        sessions.put(session, start(session, callSiteOf(new Throwable().getStackTrace())));
+    }
+    
+    private Recording start(Session session, String callSite) {
+        final String profile = autoEnable ? profileOf(callSite, session.getSessionFactory()) : null;
+        if (profile != null) {
+            LOG.debug("Enabling fetch profile {} for {}", profile, callSite);
+            session.enableFetchProfile(profile);
+            enabled.incrementAndGet();
+        }
+        return new Recording(callSite, profile);
+    }
+    
+    private void finish(Recording recording) {
+        if (recording.profile != null || recording.isEmpty()) return;
+        siteOf(recording.callSite).record(recording);
+    }
+    
+    private static String callSiteOf(StackTraceElement[] stack) {
+        for (StackTraceElement element : stack) {
+            if (isInfrastructure(element.getClassName())) continue;
+            return element.getClassName() + "#" + element.getMethodName();
+        }
+        return OTHER;
+    }
+    
+    private static boolean isInfrastructure(String className) {
+        for (String prefix : INFRASTRUCTURE) {
+            if (className.startsWith(prefix)) return true;
+        }
+        return className.contains("$$EnhancerByGuice$$");
+    }
+    
+    private String profileOf(String callSite, SessionFactory factory) {
+        final CallSite site = callSites.get(callSite);
+        final Map<String, Set<String>> candidates = profiles.get(factory);
+        if (site == null || candidates == null) return null;
+        final List<String> suggested = site.suggested;
+        String best = null;
+        int size = 0;
+        for (Entry<String, Set<String>> entry : candidates.entrySet()) {
+            final Set<String> roles = entry.getValue();
+            if (roles.size() <= size || !suggested.containsAll(roles)) continue;
+            best = entry.getKey();
+            size = roles.size();
+        }
+        return best;
+    }
+    
+    @Override
+    public void onPostLoad(PostLoadEvent event) {
+        final Recording recording = sessions.get(event.getSession());
+        if (recording == null || recording.profile != null) return;
+        Recording.increment(recording.loads, event.getPersister().getRootEntityName());
+    }
+    
+    @Override
+    public void onInitializeCollection(InitializeCollectionEvent event) throws HibernateException {
+        if (event.getCollection().wasInitialized()) return;
+        final Recording recording = sessions.get(event.getSession());
+        if (recording == null || recording.profile != null) return;
+        final String role = event.getCollection().getRole();
+        if (role == null) return;
+        Recording.increment(recording.initializations, role);
+        if (!recording.owners.containsKey(role)) {
+            final String owner = event.getSession().getFactory().getCollectionPersister(role).
+                getOwnerEntityPersister().getRootEntityName();
+            recording.owners.put(role, owner);
+        }
+    }
+    
+    @Override
+    public void checkpoint(Session session, boolean boundary) {
+        final Recording recording = sessions.get(session);
+        if (recording == null) return;
+        final String callSite = callSiteOf(new Throwable().getStackTrace());
+        // e.g. the first transaction of a session
+        if (recording.isEmpty() && callSite.equals(recording.callSite)) return;
+        // outside of transactions, another call site is most likely the next command
+        if (boundary || !callSite.equals(recording.callSite) && !session.getTransaction().isActive()) {
+            finish(recording);
+            if (recording.profile != null) {
+                session.disableFetchProfile(recording.profile);
+            }
+            sessions.put(session, start(session, callSite));
+        }
+    }
+    
+    @Override
+    public void destroyed(Session session) {
+        final Recording recording = sessions.remove(session);
+        if (recording == null) return;
+        finish(recording);
+    }
+    
+    private CallSite siteOf(String name) {
+        final String key = callSites.size() < MAX_CALL_SITES || callSites.containsKey(name) ? name : OTHER;
+        final CallSite site = callSites.get(key);
+        if (site != null) return site;
+        final CallSite created = new CallSite();
+        final CallSite previous = callSites.putIfAbsent(key, created);
+        return previous == null ? created : previous;
+    }
+    
+    /**
+     * Lazy loads of all units of work of a single call site.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class CallSite {
+        
+        private long sessions;
+        
+        private final Map<String, long[]> loads = Maps.newHashMap();
+        
+        private final Map<String, long[]> initializations = Maps.newHashMap();
+        
+        private final Map<String, String> owners = Maps.newHashMap();
+        
+        private volatile List<String> suggested = ImmutableList.of();
+        
+        public synchronized void record(Recording recording) {
+            sessions++;
+            add(loads, recording.loads);
+            add(initializations, recording.initializations);
+            owners.putAll(recording.owners);
+            suggested = suggest();
+        }
+        
+        private void add(Map<String, long[]> totals, Map<String, int[]> counts) {
+            for (Entry<String, int[]> entry : counts.entrySet()) {
+                final long[] total = totals.get(entry.getKey());
+                if (total == null) {
+                    totals.put(entry.getKey(), new long[] {entry.getValue()[0]});
+                } else {
+                    total[0] += entry.getValue()[0];
+                }
+            }
+        }
+        
+        private List<String> suggest() {
+            if (sessions < minSessions) return ImmutableList.of();
+            final List<String> roles = Lists.newArrayList();
+            for (String role : initializations.keySet()) {
+                if (ratioOf(role) >= minRatio) roles.add(role);
+            }
+            Collections.sort(roles, new Comparator<String>() {
+                
+                @Override
+                public int compare(String left, String right) {
+                    final long l = initializations.get(left)[0];
+                    final long r = initializations.get(right)[0];
+                    return l < r ? 1 : l > r ? -1 : left.compareTo(right);
+                }
+                
+            });
+            return ImmutableList.copyOf(roles);
+        }
+        
+        private double ratioOf(String role) {
+            final long count = initializations.get(role)[0];
+            final long[] ownerLoads = loads.get(owners.get(role));
+            // owners may have been loaded by other sessions
+            return (double) count / Math.max(count, ownerLoads == null ? 0L : ownerLoads[0]);
+        }
+        
+        public synchronized long getSessions() {
+            return sessions;
+        }
+        
+        public synchronized String describe() {
+            final List<String> fetches = Lists.newArrayList();
+            for (String role : suggested) {
+                fetches.add(String.format(Locale.ENGLISH, "%s (%.0f%%, %d selects)", 
+                    role, ratioOf(role) * 100, initializations.get(role)[0]));
+            }
+            return String.format(Locale.ENGLISH, "units=%d fetch=%s", sessions, fetches);
+        }
+        
+    }
+    
+    @Override
+    public int getMinSessions() {
+        return minSessions;
+    }
+    
+    @Override
+    public void setMinSessions(int minSessions) {
+        Preconditions.checkArgument(minSessions > 0, "Min sessions must be positive");
+        this.minSessions = minSessions;
+    }
+    
+    @Override
+    public double getMinRatio() {
+        return minRatio;
+    }
+    
+    @Override
+    public void setMinRatio(double minRatio) {
+        Preconditions.checkArgument(minRatio > 0d && minRatio <= 1d, "Min ratio must be in (0, 1]");
+        this.minRatio = minRatio;
+    }
+    
+    @Override
+    public boolean isAutoEnable() {
+        return autoEnable;
+    }
+    
+    @Override
+    public void setAutoEnable(boolean autoEnable) {
+        this.autoEnable = autoEnable;
+    }
+    
+    private List<Entry<String, CallSite>> sorted() {
+        final List<Entry<String, CallSite>> entries = Lists.newArrayList();
+        for (Entry<String, CallSite> entry : callSites.entrySet()) {
+            entries.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+        }
+        final Map<CallSite, Long> counts = Maps.newIdentityHashMap();
+        for (Entry<String, CallSite> entry : entries) {
+            counts.put(entry.getValue(), entry.getValue().getSessions());
+        }
+        Collections.sort(entries, new Comparator<Entry<String, CallSite>>() {
+            
+            @Override
+            public int compare(Entry<String, CallSite> left, Entry<String, CallSite> right) {
+                final long l = counts.get(left.getValue());
+                final long r = counts.get(right.getValue());
+                return l < r ? 1 : l > r ? -1 : left.getKey().compareTo(right.getKey());
+            }
+            
+        });
+        return entries;
+    }
+    
+    @Override
+    public String[] getCallSites() {
+        final List<String> names = Lists.newArrayList();
+        for (Entry<String, CallSite> entry : sorted()) {
+            names.add(entry.getKey());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+    
+    @Override
+    public String[] getSuggestedFetches(String callSite) {
+        final CallSite site = callSites.get(callSite);
+        final List<String> suggested = site == null ? ImmutableList.<String>of() : site.suggested;
+        return suggested.toArray(new String[suggested.size()]);
+    }
+    
+    @Override
+    public String[] getSummary() {
+        final List<String> lines = Lists.newArrayList();
+        for (Entry<String, CallSite> entry : sorted()) {
+            if (entry.getValue().suggested.isEmpty()) continue;
+            String profile = null;
+            for (SessionFactory factory : profiles.keySet()) {
+                profile = profileOf(entry.getKey(), factory);
+                if (profile != null) break;
+            }
+            lines.add(String.format("%s %s profile=%s", entry.getKey(), entry.getValue().describe(), profile));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+    
+    @Override
+    public long getEnabledCount() {
+        return enabled.get();
+    }
+    
+    @Override
+    public void clear() {
+        callSites.clear();
+        enabled.set(0L);
+    }
+    
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link FetchPlanAdvisor}. A call site is the first method outside
+ * of Hibernate, Guice, palava's infrastructure and the JDK which started a unit of work,
+ * i.e. opened a session, began a transaction or used a session outside of transactions.
+ * Sessions are counted per unit of work.
+ *
+ * @author Willi Schoenborn
+ */
+public interface FetchPlanAdvisorMBean {
+
+    /**
+     * Provides the number of sessions a call site needs before fetches get suggested for it.
+     * 
+     * @return the minimum number of sessions
+     */
+    int getMinSessions();
+    
+    /**
+     * Changes the minimum number of sessions.
+     * 
+     * @param minSessions the new minimum number of sessions
+     */
+    void setMinSessions(int minSessions);
+    
+    /**
+     * Provides the minimum share of loaded owners whose collection got initialized
+     * afterwards, for the collection to be suggested.
+     * 
+     * @return the minimum ratio, between 0 and 1
+     */
+    double getMinRatio();
+    
+    /**
+     * Changes the minimum ratio.
+     * 
+     * @param minRatio the new minimum ratio, between 0 and 1
+     */
+    void setMinRatio(double minRatio);
+    
+    /**
+     * Checks whether matching fetch profiles get enabled automatically.
+     * 
+     * @return true if profiles get enabled
+     */
+    boolean isAutoEnable();
+    
+    /**
+     * Enables or disables automatic fetch profiles.
+     * 
+     * @param autoEnable true to enable matching profiles
+     */
+    void setAutoEnable(boolean autoEnable);
+    
+    /**
+     * Provides all recorded call sites, most frequent first.
+     * 
+     * @return the call sites
+     */
+    String[] getCallSites();
+    
+    /**
+     * Provides the collection roles which should be fetched eagerly at the given call site.
+     * 
+     * @param callSite the call site
+     * @return the suggested roles, most frequently initialized first
+     */
+    String[] getSuggestedFetches(String callSite);
+    
+    /**
+     * Summarizes units of work, suggested fetches and the matching profile of every call site
+     * with suggestions, most frequent first.
+     * 
+     * @return one line per call site
+     */
+    String[] getSummary();
+    
+    /**
+     * Provides the number of units of work in which a fetch profile has been enabled automatically.
+     * 
+     * @return the number of units of work
+     */
+    long getEnabledCount();
+    
+    /**
+     * Resets all recordings.
+     */
+    void clear();
+    
+}
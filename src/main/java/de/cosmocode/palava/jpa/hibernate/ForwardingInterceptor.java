@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Iterator;
+
+import org.hibernate.CallbackException;
+import org.hibernate.EntityMode;
+import org.hibernate.Interceptor;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+
+import com.google.common.collect.ForwardingObject;
+
+/**
+ * Decorates an {@link Interceptor} to alter behaviour for certain methods.
+ *
+ * @author Willi Schoenborn
+ */
+abstract class ForwardingInterceptor extends ForwardingObject implements Interceptor, Serializable {
+
+    private static final long serialVersionUID = 2484396375727271539L;
+
+    /**
+     * Provide the {@link Interceptor} delegate.
+     * 
+     * @return the delegate
+     */
+    @Override
+    protected abstract Interceptor delegate();
+
+    @Override
+    public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+        throws CallbackException {
+        return delegate().onLoad(entity, id, state, propertyNames, types);
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+        String[] propertyNames, Type[] types) throws CallbackException {
+        return delegate().onFlushDirty(entity, id, currentState, previousState, propertyNames, types);
+    }
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+        throws CallbackException {
+        return delegate().onSave(entity, id, state, propertyNames, types);
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+        throws CallbackException {
+        delegate().onDelete(entity, id, state, propertyNames, types);
+    }
+
+    @Override
+    public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException {
+        delegate().onCollectionRecreate(collection, key);
+    }
+
+    @Override
+    public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
+        delegate().onCollectionRemove(collection, key);
+    }
+
+    @Override
+    public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
+        delegate().onCollectionUpdate(collection, key);
+    }
+
+    @Override
+    public void preFlush(@SuppressWarnings("rawtypes") Iterator entities) throws CallbackException {
+        delegate().preFlush(entities);
+    }
+
+    @Override
+    public void postFlush(@SuppressWarnings("rawtypes") Iterator entities) throws CallbackException {
+        delegate().postFlush(entities);
+    }
+
+    @Override
+    public Boolean isTransient(Object entity) {
+        return delegate().isTransient(entity);
+    }
+
+    @Override
+    public int[] findDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+        String[] propertyNames, Type[] types) {
+        return delegate().findDirty(entity, id, currentState, previousState, propertyNames, types);
+    }
+
+    @Override
+    public Object instantiate(String entityName, EntityMode entityMode, Serializable id) throws CallbackException {
+        return delegate().instantiate(entityName, entityMode, id);
+    }
+
+    @Override
+    public String getEntityName(Object object) throws CallbackException {
+        return delegate().getEntityName(object);
+    }
+
+    @Override
+    public Object getEntity(String entityName, Serializable id) throws CallbackException {
+        return delegate().getEntity(entityName, id);
+    }
+
+    @Override
+    public void afterTransactionBegin(Transaction tx) {
+        delegate().afterTransactionBegin(tx);
+    }
+
+    @Override
+    public void beforeTransactionCompletion(Transaction tx) {
+        delegate().beforeTransactionCompletion(tx);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        delegate().afterTransactionCompletion(tx);
+    }
+
+    @Override
+    public String onPrepareStatement(String sql) {
+        return delegate().onPrepareStatement(sql);
+    }
+
+}
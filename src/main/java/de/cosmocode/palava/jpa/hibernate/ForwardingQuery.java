@@ -0,0 +1,515 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.transform.ResultTransformer;
+import org.hibernate.type.Type;
+
+import com.google.common.collect.ForwardingObject;
+
+/**
+ * Decorates a {@link Query} to alter behaviour for certain methods.
+ * All methods which return the query itself return this decorator
+ * to keep method chaining on the decorator.
+ *
+ * @author Willi Schoenborn
+ */
+abstract class ForwardingQuery extends ForwardingObject implements Query {
+
+    /**
+     * Provide the {@link Query} delegate.
+     * 
+     * @return the delegate
+     */
+    @Override
+    protected abstract Query delegate();
+
+    @Override
+    public String getQueryString() {
+        return delegate().getQueryString();
+    }
+
+    @Override
+    public Type[] getReturnTypes() throws HibernateException {
+        return delegate().getReturnTypes();
+    }
+
+    @Override
+    public String[] getReturnAliases() throws HibernateException {
+        return delegate().getReturnAliases();
+    }
+
+    @Override
+    public String[] getNamedParameters() throws HibernateException {
+        return delegate().getNamedParameters();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Iterator iterate() throws HibernateException {
+        return delegate().iterate();
+    }
+
+    @Override
+    public ScrollableResults scroll() throws HibernateException {
+        return delegate().scroll();
+    }
+
+    @Override
+    public ScrollableResults scroll(ScrollMode scrollMode) throws HibernateException {
+        return delegate().scroll(scrollMode);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List list() throws HibernateException {
+        return delegate().list();
+    }
+
+    @Override
+    public Object uniqueResult() throws HibernateException {
+        return delegate().uniqueResult();
+    }
+
+    @Override
+    public int executeUpdate() throws HibernateException {
+        return delegate().executeUpdate();
+    }
+
+    @Override
+    public Query setMaxResults(int maxResults) {
+        delegate().setMaxResults(maxResults);
+        return this;
+    }
+
+    @Override
+    public Query setFirstResult(int firstResult) {
+        delegate().setFirstResult(firstResult);
+        return this;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return delegate().isReadOnly();
+    }
+
+    @Override
+    public Query setReadOnly(boolean readOnly) {
+        delegate().setReadOnly(readOnly);
+        return this;
+    }
+
+    @Override
+    public Query setCacheable(boolean cacheable) {
+        delegate().setCacheable(cacheable);
+        return this;
+    }
+
+    @Override
+    public Query setCacheRegion(String cacheRegion) {
+        delegate().setCacheRegion(cacheRegion);
+        return this;
+    }
+
+    @Override
+    public Query setTimeout(int timeout) {
+        delegate().setTimeout(timeout);
+        return this;
+    }
+
+    @Override
+    public Query setFetchSize(int fetchSize) {
+        delegate().setFetchSize(fetchSize);
+        return this;
+    }
+
+    @Override
+    public Query setLockOptions(LockOptions lockOptions) {
+        delegate().setLockOptions(lockOptions);
+        return this;
+    }
+
+    @Override
+    public Query setLockMode(String alias, LockMode lockMode) {
+        delegate().setLockMode(alias, lockMode);
+        return this;
+    }
+
+    @Override
+    public Query setComment(String comment) {
+        delegate().setComment(comment);
+        return this;
+    }
+
+    @Override
+    public Query setFlushMode(FlushMode flushMode) {
+        delegate().setFlushMode(flushMode);
+        return this;
+    }
+
+    @Override
+    public Query setCacheMode(CacheMode cacheMode) {
+        delegate().setCacheMode(cacheMode);
+        return this;
+    }
+
+    @Override
+    public Query setParameter(int position, Object val, Type type) {
+        delegate().setParameter(position, val, type);
+        return this;
+    }
+
+    @Override
+    public Query setParameter(String name, Object val, Type type) {
+        delegate().setParameter(name, val, type);
+        return this;
+    }
+
+    @Override
+    public Query setParameter(int position, Object val) throws HibernateException {
+        delegate().setParameter(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setParameter(String name, Object val) throws HibernateException {
+        delegate().setParameter(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setParameters(Object[] values, Type[] types) throws HibernateException {
+        delegate().setParameters(values, types);
+        return this;
+    }
+
+    @Override
+    public Query setParameterList(String name, @SuppressWarnings("rawtypes") Collection values, Type type)
+        throws HibernateException {
+        delegate().setParameterList(name, values, type);
+        return this;
+    }
+
+    @Override
+    public Query setParameterList(String name, @SuppressWarnings("rawtypes") Collection values)
+        throws HibernateException {
+        delegate().setParameterList(name, values);
+        return this;
+    }
+
+    @Override
+    public Query setParameterList(String name, Object[] values, Type type) throws HibernateException {
+        delegate().setParameterList(name, values, type);
+        return this;
+    }
+
+    @Override
+    public Query setParameterList(String name, Object[] values) throws HibernateException {
+        delegate().setParameterList(name, values);
+        return this;
+    }
+
+    @Override
+    public Query setProperties(Object bean) throws HibernateException {
+        delegate().setProperties(bean);
+        return this;
+    }
+
+    @Override
+    public Query setProperties(@SuppressWarnings("rawtypes") Map bean) throws HibernateException {
+        delegate().setProperties(bean);
+        return this;
+    }
+
+    @Override
+    public Query setString(int position, String val) {
+        delegate().setString(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setCharacter(int position, char val) {
+        delegate().setCharacter(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setBoolean(int position, boolean val) {
+        delegate().setBoolean(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setByte(int position, byte val) {
+        delegate().setByte(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setShort(int position, short val) {
+        delegate().setShort(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setInteger(int position, int val) {
+        delegate().setInteger(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setLong(int position, long val) {
+        delegate().setLong(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setFloat(int position, float val) {
+        delegate().setFloat(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setDouble(int position, double val) {
+        delegate().setDouble(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setBinary(int position, byte[] val) {
+        delegate().setBinary(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setText(int position, String val) {
+        delegate().setText(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setSerializable(int position, Serializable val) {
+        delegate().setSerializable(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setLocale(int position, Locale val) {
+        delegate().setLocale(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setBigDecimal(int position, BigDecimal val) {
+        delegate().setBigDecimal(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setBigInteger(int position, BigInteger val) {
+        delegate().setBigInteger(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setDate(int position, Date val) {
+        delegate().setDate(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setTime(int position, Date val) {
+        delegate().setTime(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setTimestamp(int position, Date val) {
+        delegate().setTimestamp(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setCalendar(int position, Calendar val) {
+        delegate().setCalendar(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setCalendarDate(int position, Calendar val) {
+        delegate().setCalendarDate(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setString(String name, String val) {
+        delegate().setString(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setCharacter(String name, char val) {
+        delegate().setCharacter(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setBoolean(String name, boolean val) {
+        delegate().setBoolean(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setByte(String name, byte val) {
+        delegate().setByte(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setShort(String name, short val) {
+        delegate().setShort(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setInteger(String name, int val) {
+        delegate().setInteger(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setLong(String name, long val) {
+        delegate().setLong(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setFloat(String name, float val) {
+        delegate().setFloat(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setDouble(String name, double val) {
+        delegate().setDouble(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setBinary(String name, byte[] val) {
+        delegate().setBinary(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setText(String name, String val) {
+        delegate().setText(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setSerializable(String name, Serializable val) {
+        delegate().setSerializable(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setLocale(String name, Locale val) {
+        delegate().setLocale(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setBigDecimal(String name, BigDecimal val) {
+        delegate().setBigDecimal(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setBigInteger(String name, BigInteger val) {
+        delegate().setBigInteger(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setDate(String name, Date val) {
+        delegate().setDate(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setTime(String name, Date val) {
+        delegate().setTime(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setTimestamp(String name, Date val) {
+        delegate().setTimestamp(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setCalendar(String name, Calendar val) {
+        delegate().setCalendar(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setCalendarDate(String name, Calendar val) {
+        delegate().setCalendarDate(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setEntity(int position, Object val) {
+        delegate().setEntity(position, val);
+        return this;
+    }
+
+    @Override
+    public Query setEntity(String name, Object val) {
+        delegate().setEntity(name, val);
+        return this;
+    }
+
+    @Override
+    public Query setResultTransformer(ResultTransformer transformer) {
+        delegate().setResultTransformer(transformer);
+        return this;
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.LockMode;
+import org.hibernate.MappingException;
+import org.hibernate.SQLQuery;
+import org.hibernate.type.Type;
+
+/**
+ * Decorates a {@link SQLQuery} to alter behaviour for certain methods.
+ * All methods which return the query itself return this decorator
+ * to keep method chaining on the decorator.
+ *
+ * @author Willi Schoenborn
+ */
+abstract class ForwardingSQLQuery extends ForwardingQuery implements SQLQuery {
+
+    /**
+     * Provide the {@link SQLQuery} delegate.
+     * 
+     * @return the delegate
+     */
+    @Override
+    protected abstract SQLQuery delegate();
+
+    @Override
+    public SQLQuery addEntity(String entityName) {
+        delegate().addEntity(entityName);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addEntity(String alias, String entityName) {
+        delegate().addEntity(alias, entityName);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addEntity(String alias, String entityName, LockMode lockMode) {
+        delegate().addEntity(alias, entityName, lockMode);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addEntity(@SuppressWarnings("rawtypes") Class entityClass) {
+        delegate().addEntity(entityClass);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addEntity(String alias, @SuppressWarnings("rawtypes") Class entityClass) {
+        delegate().addEntity(alias, entityClass);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addEntity(String alias, @SuppressWarnings("rawtypes") Class entityClass, LockMode lockMode) {
+        delegate().addEntity(alias, entityClass, lockMode);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addJoin(String alias, String path) {
+        delegate().addJoin(alias, path);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addJoin(String alias, String path, LockMode lockMode) {
+        delegate().addJoin(alias, path, lockMode);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addScalar(String columnAlias, Type type) {
+        delegate().addScalar(columnAlias, type);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addScalar(String columnAlias) {
+        delegate().addScalar(columnAlias);
+        return this;
+    }
+
+    @Override
+    public SQLQuery setResultSetMapping(String name) {
+        delegate().setResultSetMapping(name);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addSynchronizedQuerySpace(String querySpace) {
+        delegate().addSynchronizedQuerySpace(querySpace);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addSynchronizedEntityName(String entityName) throws MappingException {
+        delegate().addSynchronizedEntityName(entityName);
+        return this;
+    }
+
+    @Override
+    public SQLQuery addSynchronizedEntityClass(@SuppressWarnings("rawtypes") Class entityClass) 
+        throws MappingException {
+        delegate().addSynchronizedEntityClass(entityClass);
+        return this;
+    }
+
+}
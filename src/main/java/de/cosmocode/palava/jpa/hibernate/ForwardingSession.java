@@ -56,6 +56,20 @@ abstract class ForwardingSession extends ForwardingObject implements Session {
     @Override
     protected abstract Session delegate();
     
+    /**
+     * Removes all decorators of the given session.
+     * 
+     * @param session the session, possibly decorated
+     * @return the underlying Hibernate session
+     */
+    static Session unwrap(Session session) {
+        Session current = session;
+        while (current instanceof ForwardingSession) {
+            current = ForwardingSession.class.cast(current).delegate();
+        }
+        return current;
+    }
+    
     @Override
     public Transaction beginTransaction() throws HibernateException {
         return delegate().beginTransaction();
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.sql.Connection;
+
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+import com.google.common.collect.ForwardingObject;
+
+/**
+ * Decorates a {@link StatelessSession} to alter behaviour for certain methods.
+ *
+ * @author Willi Schoenborn
+ */
+abstract class ForwardingStatelessSession extends ForwardingObject implements StatelessSession {
+
+    private static final long serialVersionUID = 8095127209447375231L;
+
+    /**
+     * Provide the {@link StatelessSession} delegate.
+     * 
+     * @return the delegate
+     */
+    @Override
+    protected abstract StatelessSession delegate();
+
+    @Override
+    public void close() {
+        delegate().close();
+    }
+
+    @Override
+    public Serializable insert(Object entity) {
+        return delegate().insert(entity);
+    }
+
+    @Override
+    public Serializable insert(String entityName, Object entity) {
+        return delegate().insert(entityName, entity);
+    }
+
+    @Override
+    public void update(Object entity) {
+        delegate().update(entity);
+    }
+
+    @Override
+    public void update(String entityName, Object entity) {
+        delegate().update(entityName, entity);
+    }
+
+    @Override
+    public void delete(Object entity) {
+        delegate().delete(entity);
+    }
+
+    @Override
+    public void delete(String entityName, Object entity) {
+        delegate().delete(entityName, entity);
+    }
+
+    @Override
+    public Object get(String entityName, Serializable id) {
+        return delegate().get(entityName, id);
+    }
+
+    @Override
+    public Object get(@SuppressWarnings("rawtypes") Class entityClass, Serializable id) {
+        return delegate().get(entityClass, id);
+    }
+
+    @Override
+    public Object get(String entityName, Serializable id, LockMode lockMode) {
+        return delegate().get(entityName, id, lockMode);
+    }
+
+    @Override
+    public Object get(@SuppressWarnings("rawtypes") Class entityClass, Serializable id, LockMode lockMode) {
+        return delegate().get(entityClass, id, lockMode);
+    }
+
+    @Override
+    public void refresh(Object entity) {
+        delegate().refresh(entity);
+    }
+
+    @Override
+    public void refresh(String entityName, Object entity) {
+        delegate().refresh(entityName, entity);
+    }
+
+    @Override
+    public void refresh(Object entity, LockMode lockMode) {
+        delegate().refresh(entity, lockMode);
+    }
+
+    @Override
+    public void refresh(String entityName, Object entity, LockMode lockMode) {
+        delegate().refresh(entityName, entity, lockMode);
+    }
+
+    @Override
+    public Query createQuery(String queryString) {
+        return delegate().createQuery(queryString);
+    }
+
+    @Override
+    public Query getNamedQuery(String queryName) {
+        return delegate().getNamedQuery(queryName);
+    }
+
+    @Override
+    public Criteria createCriteria(@SuppressWarnings("rawtypes") Class entityClass) {
+        return delegate().createCriteria(entityClass);
+    }
+
+    @Override
+    public Criteria createCriteria(@SuppressWarnings("rawtypes") Class entityClass, String alias) {
+        return delegate().createCriteria(entityClass, alias);
+    }
+
+    @Override
+    public Criteria createCriteria(String entityName) {
+        return delegate().createCriteria(entityName);
+    }
+
+    @Override
+    public Criteria createCriteria(String entityName, String alias) {
+        return delegate().createCriteria(entityName, alias);
+    }
+
+    @Override
+    public SQLQuery createSQLQuery(String queryString) throws HibernateException {
+        return delegate().createSQLQuery(queryString);
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        return delegate().beginTransaction();
+    }
+
+    @Override
+    public Transaction getTransaction() {
+        return delegate().getTransaction();
+    }
+
+    @Override
+    public Connection connection() {
+        return delegate().connection();
+    }
+
+}
@@ -17,6 +17,7 @@
 package de.cosmocode.palava.jpa.hibernate;
 
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 
 import com.google.inject.Binder;
 import com.google.inject.Module;
@@ -26,7 +27,8 @@ import de.cosmocode.palava.ipc.IpcConnectionScoped;
 
 /**
  * Binds the {@link HibernateService} as a service and a provider
- * for {@link Session}s.
+ * for {@link Session}s, {@link ReadOnly} and {@link Replica} {@link Session}s
+ * and {@link StatelessSession}s.
  *
  * @author Willi Schoenborn
  */
@@ -36,6 +38,11 @@ public final class HibernateModule implements Module {
     public void configure(Binder binder) {
         binder.bind(HibernateService.class).to(DefaultHibernateService.class).in(Singleton.class);
         binder.bind(Session.class).toProvider(HibernateService.class).in(IpcConnectionScoped.class);
+        binder.bind(Session.class).annotatedWith(ReadOnly.class).toProvider(
+            ReadOnlySessionProvider.class).in(IpcConnectionScoped.class);
+        binder.bind(Session.class).annotatedWith(Replica.class).toProvider(
+            ReplicaSessionProvider.class).in(IpcConnectionScoped.class);
+        binder.bind(StatelessSession.class).toProvider(StatelessSessionProvider.class).in(IpcConnectionScoped.class);
     }
 
 }
@@ -16,14 +16,24 @@
 
 package de.cosmocode.palava.jpa.hibernate;
 
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hibernate.Criteria;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 
 import com.google.inject.Provider;
 
 /**
  * A Service which provides access to a {@link SessionFactory} and can produce
- * {@link Session}s.
+ * {@link Session}s and {@link StatelessSession}s.
  *
  * @author Willi Schoenborn
  */
@@ -36,4 +46,123 @@ public interface HibernateService extends Provider<Session> {
      */
     SessionFactory getSessionFactory();
     
+    /**
+     * Produces a new read-only {@link Session}. Entities are loaded in read-only
+     * mode and the session never flushes automatically. The session is routed
+     * according to the configured default. {@link ReadOnly} sessions are produced
+     * by this method once per connection, i.e. always use the default route.
+     * 
+     * @return a new read-only session
+     */
+    Session getReadOnlySession();
+    
+    /**
+     * Produces a new read-only {@link Session} like {@link #getReadOnlySession()}, routed
+     * to the given session factory, e.g. to read from the primary after a write in the
+     * same request. The caller is responsible for destroying the returned session.
+     * 
+     * @param route the route
+     * @return a new read-only session
+     * @throws NullPointerException if route is null
+     */
+    Session getReadOnlySession(Route route);
+    
+    /**
+     * Produces a new read-only {@link Session} on the replica session factory.
+     * Falls back to the primary session factory if no replica is configured.
+     * 
+     * @return a new read-only session on the replica
+     */
+    Session getReplicaSession();
+    
+    /**
+     * Produces a new {@link StatelessSession}. Stateless sessions don't have a
+     * first-level cache and are suited for bulk operations which would otherwise
+     * accumulate managed entities. The returned session is opened lazily and
+     * closed when its scope gets destroyed.
+     * 
+     * @return a new stateless session
+     */
+    StatelessSession getStatelessSession();
+    
+    /**
+     * Persists all given entities in a new session and a single transaction. The session
+     * is flushed and cleared after every chunk, the chunk size defaults to the configured
+     * JDBC batch size. The given entities are detached afterwards.
+     * 
+     * @param entities the entities to persist
+     * @return the number of written rows and the throughput
+     * @throws org.hibernate.HibernateException if persisting fails, the transaction is rolled back
+     */
+    BulkWriteResult persistAll(Iterable<?> entities);
+    
+    /**
+     * Merges all given entities in a new session and a single transaction. The session
+     * is flushed and cleared after every chunk, the chunk size defaults to the configured
+     * JDBC batch size.
+     * 
+     * @param entities the entities to merge
+     * @return the number of written rows and the throughput
+     * @throws org.hibernate.HibernateException if merging fails, the transaction is rolled back
+     */
+    BulkWriteResult mergeAll(Iterable<?> entities);
+    
+    /**
+     * Streams the results of the given query forward-only using the configured fetch size.
+     * Entities are evicted from the given session once they have been consumed,
+     * so memory stays flat regardless of the size of the result. The returned
+     * results should be closed if they are not consumed completely.
+     * 
+     * @param <T> the row type
+     * @param session the session which created the query
+     * @param query the query
+     * @return the streaming results
+     */
+    <T> StreamingResults<T> stream(Session session, Query query);
+    
+    /**
+     * Streams the results of the given criteria forward-only using the configured fetch size.
+     * Entities are evicted from the given session once they have been consumed,
+     * so memory stays flat regardless of the size of the result. The returned
+     * results should be closed if they are not consumed completely.
+     * 
+     * @param <T> the row type
+     * @param session the session which created the criteria
+     * @param criteria the criteria
+     * @return the streaming results
+     */
+    <T> StreamingResults<T> stream(Session session, Criteria criteria);
+    
+    /**
+     * Loads all entities of the given type with the given ids. Entities which are managed by
+     * the given session or present in the second level cache are resolved without a query,
+     * the remaining ones are selected using {@code IN} queries, chunked to the dialect's limit.
+     * 
+     * @param <T> the entity type
+     * @param session the session to load the entities into
+     * @param type the entity class
+     * @param ids the ids, duplicates are loaded once
+     * @return the found entities by id, in the order of the given ids, without missing ids
+     * @throws IllegalArgumentException if type is not mapped
+     */
+    <T> Map<Serializable, T> getAll(Session session, Class<T> type, Collection<? extends Serializable> ids);
+    
+    /**
+     * Runs the given callables in parallel, each in its own read-only {@link Session}, routed like
+     * {@link #getReadOnlySession()} would be. Waits for all results at most
+     * the given timeout. If a callable fails or the timeout elapses, all callables which are still
+     * running get their current query cancelled and their session fails on its next use. They are
+     * not interrupted and may run until then. Callables must not call this method.
+     * 
+     * @param <T> the result type
+     * @param callables the callables
+     * @param timeout the maximum time to wait for all results
+     * @param unit the unit of timeout
+     * @return the results, in the order of the callables
+     * @throws TimeoutException if not all callables completed in time
+     * @throws IllegalStateException if called from within a callable
+     */
+    <T> List<T> fanOut(List<? extends SessionCallable<? extends T>> callables, long timeout, TimeUnit unit)
+        throws TimeoutException;
+    
 }
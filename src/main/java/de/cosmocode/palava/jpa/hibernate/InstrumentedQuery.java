@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.jpa.hibernate.LatencyStatistics.Operation;
+
+/**
+ * A {@link Query} decorator which records the execution latency in
+ * {@link LatencyStatistics}. Executions are attributed to the first returned
+ * entity type, if any.
+ *
+ * @author Willi Schoenborn
+ */
+final class InstrumentedQuery extends ForwardingQuery {
+
+    private final Query query;
+    
+    private final LatencyStatistics statistics;
+    
+    private String entityName;
+    
+    public InstrumentedQuery(Query query, LatencyStatistics statistics) {
+        this.query = Preconditions.checkNotNull(query, "Query");
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+    }
+    
+    @Override
+    protected Query delegate() {
+        return query;
+    }
+    
+    private String entityName() {
+        if (entityName == null) {
+            entityName = LatencyStatistics.UNKNOWN;
+            try {
+                final Type[] types = query.getReturnTypes();
+                if (types != null && types.length > 0 && types[0] instanceof EntityType) {
+                    entityName = EntityType.class.cast(types[0]).getAssociatedEntityName();
+                }
+            } catch (RuntimeException e) {
+                // native and update queries don't provide return types
+            }
+        }
+        return entityName;
+    }
+    
+    private void record(long start) {
+        statistics.record(entityName(), Operation.QUERY, System.nanoTime() - start);
+    }
+    
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List list() throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.list();
+        } finally {
+            record(start);
+        }
+    }
+    
+    @Override
+    public Object uniqueResult() throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.uniqueResult();
+        } finally {
+            record(start);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Iterator iterate() throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.iterate();
+        } finally {
+            record(start);
+        }
+    }
+    
+    @Override
+    public ScrollableResults scroll() throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.scroll();
+        } finally {
+            record(start);
+        }
+    }
+    
+    @Override
+    public ScrollableResults scroll(ScrollMode scrollMode) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.scroll(scrollMode);
+        } finally {
+            record(start);
+        }
+    }
+    
+    @Override
+    public int executeUpdate() throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.executeUpdate();
+        } finally {
+            record(start);
+        }
+    }
+    
+}
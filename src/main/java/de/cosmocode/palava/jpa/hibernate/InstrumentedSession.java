@@ -0,0 +1,275 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.jpa.hibernate.LatencyStatistics.Operation;
+import de.cosmocode.palava.scope.Destroyable;
+
+/**
+ * A {@link Destroyable} session decorator which records the latency of
+ * get, load, query execution, flush, merge and persist calls
+ * in {@link LatencyStatistics}.
+ *
+ * @author Willi Schoenborn
+ */
+final class InstrumentedSession extends ForwardingSession implements Destroyable {
+
+    private static final long serialVersionUID = 6412558047216880719L;
+
+    private final Session session;
+    
+    private final Destroyable destroyable;
+    
+    private final LatencyStatistics statistics;
+    
+    public <S extends Session & Destroyable> InstrumentedSession(S session, LatencyStatistics statistics) {
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.destroyable = session;
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+    }
+    
+    @Override
+    protected Session delegate() {
+        return session;
+    }
+    
+    private void record(String entityName, Operation operation, long start) {
+        statistics.record(entityName, operation, System.nanoTime() - start);
+    }
+    
+    private static String nameOf(@SuppressWarnings("rawtypes") Class type) {
+        return type == null ? LatencyStatistics.UNKNOWN : type.getName();
+    }
+    
+    private static String nameOf(Object object) {
+        return object == null ? LatencyStatistics.UNKNOWN : object.getClass().getName();
+    }
+    
+    @Override
+    public Object get(@SuppressWarnings("rawtypes") Class clazz, Serializable id) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.get(clazz, id);
+        } finally {
+            record(nameOf(clazz), Operation.GET, start);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object get(@SuppressWarnings("rawtypes") Class clazz, Serializable id, LockMode lockMode) 
+        throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.get(clazz, id, lockMode);
+        } finally {
+            record(nameOf(clazz), Operation.GET, start);
+        }
+    }
+    
+    @Override
+    public Object get(@SuppressWarnings("rawtypes") Class clazz, Serializable id, LockOptions lockOptions)
+        throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.get(clazz, id, lockOptions);
+        } finally {
+            record(nameOf(clazz), Operation.GET, start);
+        }
+    }
+    
+    @Override
+    public Object get(String entityName, Serializable id) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.get(entityName, id);
+        } finally {
+            record(entityName, Operation.GET, start);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object get(String entityName, Serializable id, LockMode lockMode) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.get(entityName, id, lockMode);
+        } finally {
+            record(entityName, Operation.GET, start);
+        }
+    }
+    
+    @Override
+    public Object get(String entityName, Serializable id, LockOptions lockOptions) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.get(entityName, id, lockOptions);
+        } finally {
+            record(entityName, Operation.GET, start);
+        }
+    }
+    
+    @Override
+    public Object load(@SuppressWarnings("rawtypes") Class theClass, Serializable id) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.load(theClass, id);
+        } finally {
+            record(nameOf(theClass), Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object load(@SuppressWarnings("rawtypes") Class theClass, Serializable id, LockMode lockMode) 
+        throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.load(theClass, id, lockMode);
+        } finally {
+            record(nameOf(theClass), Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    public Object load(@SuppressWarnings("rawtypes") Class theClass, Serializable id, LockOptions lockOptions)
+        throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.load(theClass, id, lockOptions);
+        } finally {
+            record(nameOf(theClass), Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    public Object load(String entityName, Serializable id) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.load(entityName, id);
+        } finally {
+            record(entityName, Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object load(String entityName, Serializable id, LockMode lockMode) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.load(entityName, id, lockMode);
+        } finally {
+            record(entityName, Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    public Object load(String entityName, Serializable id, LockOptions lockOptions) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.load(entityName, id, lockOptions);
+        } finally {
+            record(entityName, Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    public void load(Object object, Serializable id) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            super.load(object, id);
+        } finally {
+            record(nameOf(object), Operation.LOAD, start);
+        }
+    }
+    
+    @Override
+    public void flush() throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            super.flush();
+        } finally {
+            record(LatencyStatistics.UNKNOWN, Operation.FLUSH, start);
+        }
+    }
+    
+    @Override
+    public Object merge(Object object) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.merge(object);
+        } finally {
+            record(nameOf(object), Operation.MERGE, start);
+        }
+    }
+    
+    @Override
+    public Object merge(String entityName, Object object) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            return super.merge(entityName, object);
+        } finally {
+            record(entityName, Operation.MERGE, start);
+        }
+    }
+    
+    @Override
+    public void persist(Object object) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            super.persist(object);
+        } finally {
+            record(nameOf(object), Operation.PERSIST, start);
+        }
+    }
+    
+    @Override
+    public void persist(String entityName, Object object) throws HibernateException {
+        final long start = System.nanoTime();
+        try {
+            super.persist(entityName, object);
+        } finally {
+            record(entityName, Operation.PERSIST, start);
+        }
+    }
+    
+    @Override
+    public Query createQuery(String queryString) throws HibernateException {
+        return new InstrumentedQuery(super.createQuery(queryString), statistics);
+    }
+    
+    @Override
+    public Query getNamedQuery(String queryName) throws HibernateException {
+        return new InstrumentedQuery(super.getNamedQuery(queryName), statistics);
+    }
+    
+    @Override
+    public void destroy() {
+        destroyable.destroy();
+    }
+    
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Set;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.impl.QueryImpl;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Query} decorator which invalidates the {@link QueryResultCache} after HQL bulk updates
+ * of sessions which don't fire events, i.e. stateless sessions. The affected tables are invalidated
+ * once the transaction commits.
+ *
+ * @author Willi Schoenborn
+ */
+final class InvalidatingQuery extends ForwardingQuery {
+
+    private final Query query;
+    
+    private final SessionImplementor session;
+    
+    private final QueryResultCache cache;
+    
+    public InvalidatingQuery(Query query, SessionImplementor session, QueryResultCache cache) {
+        this.query = Preconditions.checkNotNull(query, "Query");
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+    }
+    
+    @Override
+    protected Query delegate() {
+        return query;
+    }
+    
+    @Override
+    public int executeUpdate() throws HibernateException {
+        final int rows = super.executeUpdate();
+        if (query instanceof QueryImpl) {
+            @SuppressWarnings("unchecked")
+            final Set<String> spaces = session.getFactory().getQueryPlanCache().getHQLQueryPlan(
+                getQueryString(), false, Collections.EMPTY_MAP).getQuerySpaces();
+            cache.written(session.getJDBCContext().getTransaction(), 
+                spaces.toArray(new Serializable[spaces.size()]), true);
+        }
+        return rows;
+    }
+    
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.SQLQuery;
+import org.hibernate.engine.NamedSQLQueryDefinition;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * A {@link SQLQuery} decorator which invalidates the {@link QueryResultCache} after native updates.
+ * Native updates fire no events, their synchronized query spaces are invalidated once the
+ * transaction commits. Updates without synchronized spaces invalidate all tables, like they
+ * evict all second-level cache regions.
+ *
+ * @author Willi Schoenborn
+ */
+final class InvalidatingSQLQuery extends ForwardingSQLQuery {
+
+    private final SQLQuery query;
+    
+    private final SessionImplementor session;
+    
+    private final QueryResultCache cache;
+    
+    private final Set<String> spaces = Sets.newHashSet();
+    
+    public InvalidatingSQLQuery(SQLQuery query, SessionImplementor session, QueryResultCache cache, 
+        Collection<String> spaces) {
+        this.query = Preconditions.checkNotNull(query, "Query");
+        this.session = Preconditions.checkNotNull(session, "Session");
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+        this.spaces.addAll(spaces);
+    }
+    
+    /**
+     * Provides the synchronized query spaces of the given named native query.
+     * 
+     * @param factory the session factory
+     * @param queryName the name of the query
+     * @return the declared spaces, empty if there are none or the query is not a native query
+     */
+    static Collection<String> spacesOf(SessionFactoryImplementor factory, String queryName) {
+        final NamedSQLQueryDefinition definition = factory.getNamedSQLQuery(queryName);
+        if (definition == null || definition.getQuerySpaces() == null) return Collections.emptySet();
+        @SuppressWarnings("unchecked")
+        final Collection<String> spaces = definition.getQuerySpaces();
+        return spaces;
+    }
+    
+    @Override
+    protected SQLQuery delegate() {
+        return query;
+    }
+    
+    @Override
+    public SQLQuery addSynchronizedQuerySpace(String querySpace) {
+        spaces.add(querySpace);
+        return super.addSynchronizedQuerySpace(querySpace);
+    }
+    
+    @Override
+    public SQLQuery addSynchronizedEntityName(String entityName) throws MappingException {
+        super.addSynchronizedEntityName(entityName);
+        synchronize(entityName);
+        return this;
+    }
+    
+    @Override
+    public SQLQuery addSynchronizedEntityClass(@SuppressWarnings("rawtypes") Class entityClass) 
+        throws MappingException {
+        super.addSynchronizedEntityClass(entityClass);
+        synchronize(entityClass.getName());
+        return this;
+    }
+    
+    private void synchronize(String entityName) {
+        for (Serializable space : session.getFactory().getEntityPersister(entityName).getQuerySpaces()) {
+            spaces.add(space.toString());
+        }
+    }
+    
+    @Override
+    public int executeUpdate() throws HibernateException {
+        final int rows = super.executeUpdate();
+        final Serializable[] written = spaces.isEmpty() ? 
+            QueryResultCache.spacesOf(session.getFactory()) : spaces.toArray(new Serializable[spaces.size()]);
+        cache.written(session.getJDBCContext().getTransaction(), written, true);
+        return rows;
+    }
+    
+}
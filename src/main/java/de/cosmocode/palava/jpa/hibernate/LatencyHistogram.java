@@ -0,0 +1,137 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A lock-free latency histogram with preallocated, logarithmic buckets.
+ * Like a HDR histogram, every power of two is split into {@value #SUB_BUCKETS}
+ * linear sub buckets, which bounds the relative error to 12.5%.
+ * Recording a value does not allocate.
+ *
+ * @author Willi Schoenborn
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records the given value.
+     * 
+     * @param value the value, usually in nanoseconds, negative values are treated as zero
+     */
+    public void record(long value) {
+        final long normalized = Math.max(0L, value);
+        counts.incrementAndGet(indexOf(normalized));
+        
+        long current = max.get();
+        while (normalized > current) {
+            if (max.compareAndSet(current, normalized)) break;
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Provides the number of recorded values.
+     * 
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+    
+    /**
+     * Provides the highest recorded value.
+     * 
+     * @return the maximum
+     */
+    public long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * Estimates the value at the given percentile. The returned value is the upper
+     * bound of the bucket the percentile falls into.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated value or 0 if nothing has been recorded yet
+     * @throws IllegalArgumentException if percentile is out of range
+     */
+    public long getPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0, 
+            "Percentile %s out of range", percentile);
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L) return 0L;
+        
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    /**
+     * Resets this histogram. Concurrent updates may get lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        max.set(0L);
+    }
+    
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        final int sub = index % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + sub) * width) + width - 1;
+    }
+    
+}
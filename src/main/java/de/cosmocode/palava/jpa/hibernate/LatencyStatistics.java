@@ -0,0 +1,148 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Ordering;
+
+/**
+ * Collects {@link LatencyHistogram}s per entity name and {@link Operation}.
+ *
+ * @author Willi Schoenborn
+ */
+final class LatencyStatistics implements LatencyStatisticsMBean {
+
+    /**
+     * Entity name used for operations which can't be attributed to a single entity.
+     */
+    static final String UNKNOWN = "*";
+    
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private final ConcurrentMap<String, LatencyHistogram[]> histograms = new MapMaker().makeMap();
+    
+    /**
+     * Operations which are timed by {@link InstrumentedSession}.
+     *
+     * @author Willi Schoenborn
+     */
+    enum Operation {
+        
+        GET, 
+        
+        LOAD, 
+        
+        QUERY, 
+        
+        FLUSH, 
+        
+        MERGE, 
+        
+        PERSIST;
+        
+        static Operation of(String name) {
+            return valueOf(Preconditions.checkNotNull(name, "Name").toUpperCase(Locale.ENGLISH));
+        }
+        
+    }
+    
+    /**
+     * Records the given latency.
+     * 
+     * @param entityName the entity name, {@link #UNKNOWN} if there is none
+     * @param operation the operation
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(String entityName, Operation operation, long nanos) {
+        histogramsOf(entityName)[operation.ordinal()].record(nanos);
+    }
+    
+    private LatencyHistogram[] histogramsOf(String entityName) {
+        final LatencyHistogram[] existing = histograms.get(entityName);
+        if (existing != null) return existing;
+        
+        final LatencyHistogram[] created = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new LatencyHistogram();
+        }
+        final LatencyHistogram[] raced = histograms.putIfAbsent(entityName, created);
+        return raced == null ? created : raced;
+    }
+    
+    private LatencyHistogram histogramOf(String entityName, String operation) {
+        final LatencyHistogram[] all = histograms.get(entityName);
+        return all == null ? null : all[Operation.of(operation).ordinal()];
+    }
+    
+    @Override
+    public String[] getEntityNames() {
+        final List<String> names = Ordering.natural().sortedCopy(histograms.keySet());
+        return names.toArray(new String[names.size()]);
+    }
+    
+    @Override
+    public long getCount(String entityName, String operation) {
+        final LatencyHistogram histogram = histogramOf(entityName, operation);
+        return histogram == null ? 0L : histogram.getCount();
+    }
+    
+    @Override
+    public double getPercentile(String entityName, String operation, double percentile) {
+        final LatencyHistogram histogram = histogramOf(entityName, operation);
+        return histogram == null ? 0.0 : histogram.getPercentile(percentile) / NANOS_PER_MILLI;
+    }
+    
+    @Override
+    public String[] getSummary() {
+        final List<String> lines = Lists.newArrayList();
+        for (String entityName : getEntityNames()) {
+            final LatencyHistogram[] all = histograms.get(entityName);
+            for (Operation operation : Operation.values()) {
+                final LatencyHistogram histogram = all[operation.ordinal()];
+                final long count = histogram.getCount();
+                if (count == 0L) continue;
+                lines.add(String.format(Locale.ENGLISH,
+                    "%s %s count=%d p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                    entityName, operation.name().toLowerCase(Locale.ENGLISH), count,
+                    histogram.getPercentile(50.0) / NANOS_PER_MILLI,
+                    histogram.getPercentile(90.0) / NANOS_PER_MILLI,
+                    histogram.getPercentile(99.0) / NANOS_PER_MILLI,
+                    histogram.getMax() / NANOS_PER_MILLI
+                ));
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+    
+    @Override
+    public void clear() {
+        for (Entry<String, LatencyHistogram[]> entry : histograms.entrySet()) {
+            for (LatencyHistogram histogram : entry.getValue()) {
+                histogram.reset();
+            }
+        }
+    }
+    
+}
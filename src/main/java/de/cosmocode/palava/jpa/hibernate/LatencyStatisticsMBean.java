@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link LatencyStatistics}. Operations are named
+ * get, load, query, flush, merge and persist. Latencies are reported in milliseconds.
+ *
+ * @author Willi Schoenborn
+ */
+public interface LatencyStatisticsMBean {
+
+    /**
+     * Provides all entity names for which latencies have been recorded.
+     * 
+     * @return the entity names
+     */
+    String[] getEntityNames();
+    
+    /**
+     * Provides the number of recorded calls.
+     * 
+     * @param entityName the entity name
+     * @param operation the operation
+     * @return the number of calls
+     */
+    long getCount(String entityName, String operation);
+    
+    /**
+     * Estimates the latency at the given percentile.
+     * 
+     * @param entityName the entity name
+     * @param operation the operation
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in milliseconds
+     */
+    double getPercentile(String entityName, String operation, double percentile);
+    
+    /**
+     * Summarizes count, median, 90th, 99th percentile and maximum of
+     * every recorded entity and operation.
+     * 
+     * @return one line per entity and operation
+     */
+    String[] getSummary();
+    
+    /**
+     * Resets all histograms.
+     */
+    void clear();
+    
+}
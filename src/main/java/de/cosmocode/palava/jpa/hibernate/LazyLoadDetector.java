@@ -0,0 +1,225 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.InitializeCollectionEvent;
+import org.hibernate.event.InitializeCollectionEventListener;
+import org.hibernate.event.LoadEvent;
+import org.hibernate.event.LoadEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+/**
+ * Detects N+1 selects by counting lazy collection initializations and proxy loads
+ * per session, grouped by collection role respectively entity name. When a session
+ * gets destroyed, every role which has been loaded lazily more often than the threshold
+ * is logged and counted. Has to be bound in front of Hibernate's default listeners,
+ * it only counts and never loads anything itself.
+ *
+ * @author Willi Schoenborn
+ */
+final class LazyLoadDetector implements InitializeCollectionEventListener, LoadEventListener, 
+    SessionListener, LazyLoadDetectorMBean {
+
+    private static final long serialVersionUID = 7016431258861379530L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(LazyLoadDetector.class);
+    
+    private final ConcurrentMap<Session, Map<String, int[]>> sessions = 
+        new MapMaker().weakKeys().makeMap();
+    
+    private final ConcurrentMap<String, Detection> detections = new MapMaker().makeMap();
+    
+    private volatile int threshold;
+    
+    public LazyLoadDetector(int threshold) {
+        setThreshold(threshold);
+    }
+    
+    @Override
+    public void onInitializeCollection(InitializeCollectionEvent event) throws HibernateException {
+        if (event.getCollection().wasInitialized()) return;
+        count(event.getSession(), event.getCollection().getRole());
+    }
+    
+    @Override
+    public void onLoad(LoadEvent event, LoadType loadType) throws HibernateException {
+        // proxies get initialized using immediate loads
+        if (loadType != LoadEventListener.IMMEDIATE_LOAD) return;
+        final EventSource session = event.getSession();
+        final EntityPersister persister = session.getFactory().getEntityPersister(event.getEntityClassName());
+        final EntityKey key = new EntityKey(event.getEntityId(), persister, session.getEntityMode());
+        // already loaded by a batch fetch, no select
+        if (session.getPersistenceContext().getEntity(key) != null) return;
+        count(session, persister.getEntityName());
+    }
+    
+    private void count(Session session, String role) {
+        if (role == null) return;
+        Map<String, int[]> counts = sessions.get(session);
+        if (counts == null) {
+            // sessions are confined to a single thread
+            counts = Maps.newHashMap();
+            sessions.put(session, counts);
+        }
+        final int[] count = counts.get(role);
+        if (count == null) {
+            counts.put(role, new int[] {1});
+        } else {
+            count[0]++;
+        }
+    }
+    
+    @Override
+    public void opened(Session session) {
+        
+    }
+    
+    @Override
+    public void checkpoint(Session session, boolean boundary) {
+        
+    }
+    
+    @Override
+    public void destroyed(Session session) {
+        final Map<String, int[]> counts = sessions.remove(session);
+        if (counts == null) return;
+        final int limit = threshold;
+        for (Entry<String, int[]> entry : counts.entrySet()) {
+            final int count = entry.getValue()[0];
+            if (count <= limit) continue;
+            final String role = entry.getKey();
+            LOG.warn("Possible N+1 selects: {} loaded lazily {} times in one session", role, count);
+            detectionOf(role).record(count);
+        }
+    }
+    
+    private Detection detectionOf(String role) {
+        final Detection detection = detections.get(role);
+        if (detection != null) return detection;
+        final Detection created = new Detection();
+        final Detection previous = detections.putIfAbsent(role, created);
+        return previous == null ? created : previous;
+    }
+    
+    /**
+     * Detections of a single role.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Detection {
+        
+        private final AtomicLong sessions = new AtomicLong();
+        
+        private final AtomicLong loads = new AtomicLong();
+        
+        private final AtomicInteger max = new AtomicInteger();
+        
+        public void record(int count) {
+            sessions.incrementAndGet();
+            loads.addAndGet(count);
+            while (true) {
+                final int current = max.get();
+                if (count <= current || max.compareAndSet(current, count)) return;
+            }
+        }
+        
+    }
+    
+    @Override
+    public int getThreshold() {
+        return threshold;
+    }
+    
+    @Override
+    public void setThreshold(int threshold) {
+        Preconditions.checkArgument(threshold > 0, "Threshold must be positive");
+        this.threshold = threshold;
+    }
+    
+    @Override
+    public long getDetectionCount() {
+        long count = 0L;
+        for (Detection detection : detections.values()) {
+            count += detection.sessions.get();
+        }
+        return count;
+    }
+    
+    @Override
+    public String[] getRoles() {
+        final List<String> roles = Lists.newArrayList(detections.keySet());
+        Collections.sort(roles);
+        return roles.toArray(new String[roles.size()]);
+    }
+    
+    @Override
+    public long getDetectionCount(String role) {
+        final Detection detection = detections.get(role);
+        return detection == null ? 0L : detection.sessions.get();
+    }
+    
+    @Override
+    public String[] getSummary() {
+        final List<Entry<String, Detection>> entries = Lists.newArrayList(detections.entrySet());
+        Collections.sort(entries, new Comparator<Entry<String, Detection>>() {
+            
+            @Override
+            public int compare(Entry<String, Detection> left, Entry<String, Detection> right) {
+                final long l = left.getValue().sessions.get();
+                final long r = right.getValue().sessions.get();
+                return l < r ? 1 : l > r ? -1 : left.getKey().compareTo(right.getKey());
+            }
+            
+        });
+        final List<String> lines = Lists.newArrayList();
+        for (Entry<String, Detection> entry : entries) {
+            final Detection detection = entry.getValue();
+            lines.add(String.format(Locale.ENGLISH, "%s detections=%d loads=%d max=%d",
+                entry.getKey(), detection.sessions.get(), detection.loads.get(), detection.max.get()
+            ));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+    
+    @Override
+    public void clear() {
+        detections.clear();
+    }
+    
+}
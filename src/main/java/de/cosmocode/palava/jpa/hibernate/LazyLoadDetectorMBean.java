@@ -0,0 +1,78 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link LazyLoadDetector}. Roles are collection roles,
+ * e.g. {@code com.example.Order.items}, or entity names for proxy initializations.
+ *
+ * @author Willi Schoenborn
+ */
+public interface LazyLoadDetectorMBean {
+
+    /**
+     * Provides the number of lazy loads of a single role per session above which
+     * the role gets reported.
+     * 
+     * @return the threshold
+     */
+    int getThreshold();
+    
+    /**
+     * Changes the threshold.
+     * 
+     * @param threshold the new threshold
+     */
+    void setThreshold(int threshold);
+    
+    /**
+     * Provides the total number of reported roles, summed up over all sessions.
+     * 
+     * @return the number of detections
+     */
+    long getDetectionCount();
+    
+    /**
+     * Provides all roles which have been reported at least once.
+     * 
+     * @return the reported roles
+     */
+    String[] getRoles();
+    
+    /**
+     * Provides the number of sessions in which the given role has been reported.
+     * 
+     * @param role the role
+     * @return the number of detections
+     */
+    long getDetectionCount(String role);
+    
+    /**
+     * Summarizes detections, total and maximum lazy loads per session of every reported role,
+     * most frequently reported first.
+     * 
+     * @return one line per role
+     */
+    String[] getSummary();
+    
+    /**
+     * Resets all counters.
+     */
+    void clear();
+    
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.cache.CacheKey;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.SQLServerDialect;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Loads several entities of the same type by id. Entities which are already managed
+ * by the session or present in the second level cache are resolved using {@link Session#get(Class, Serializable)},
+ * which doesn't hit the database for them. All other entities are selected using chunked
+ * {@code IN} queries. Chunks are padded to powers of two by repeating the last id,
+ * which bounds the number of distinct statements the database and the query plan cache see.
+ *
+ * @author Willi Schoenborn
+ */
+final class MultiGet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiGet.class);
+    
+    // Oracle limits in lists to 1000 elements
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    
+    // SQL Server limits statements to 2100 parameters
+    private static final int SQL_SERVER_CHUNK_SIZE = 2000;
+    
+    private final int chunkSize;
+    
+    /**
+     * Creates a new {@link MultiGet}.
+     * 
+     * @param chunkSize the maximum number of ids per query
+     */
+    public MultiGet(int chunkSize) {
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size must be positive");
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Provides the maximum number of ids per query the given dialect supports.
+     * 
+     * @param dialect the dialect
+     * @return the chunk size
+     */
+    public static int chunkSizeOf(Dialect dialect) {
+        if (dialect instanceof SQLServerDialect) {
+            return SQL_SERVER_CHUNK_SIZE;
+        } else {
+            return DEFAULT_CHUNK_SIZE;
+        }
+    }
+    
+    /**
+     * Loads all entities with the given ids.
+     * 
+     * @param <T> the entity type
+     * @param session the session
+     * @param type the entity class
+     * @param ids the ids
+     * @return all found entities by id, in the order of the given ids
+     * @throws IllegalArgumentException if type is not mapped
+     */
+    public <T> Map<Serializable, T> run(Session session, Class<T> type, Collection<? extends Serializable> ids) {
+        Preconditions.checkNotNull(session, "Session");
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(ids, "Ids");
+        
+        final SessionImplementor implementor = SessionImplementor.class.cast(ForwardingSession.unwrap(session));
+        final SessionFactoryImplementor factory = implementor.getFactory();
+        final ClassMetadata metadata = factory.getClassMetadata(type);
+        Preconditions.checkArgument(metadata != null, "%s is not mapped", type);
+        final EntityPersister persister = factory.getEntityPersister(metadata.getEntityName());
+        
+        final Set<Serializable> distinct = Sets.newLinkedHashSet();
+        final Map<Serializable, T> found = Maps.newHashMap();
+        final List<Serializable> missing = Lists.newArrayList();
+        
+        for (Serializable id : ids) {
+            Preconditions.checkNotNull(id, "Id");
+            if (!distinct.add(id)) continue;
+            final EntityKey key = new EntityKey(id, persister, implementor.getEntityMode());
+            if (implementor.getPersistenceContext().getEntity(key) == null && !isCached(implementor, persister, id)) {
+                missing.add(id);
+            } else {
+                final Object entity = session.get(type, id);
+                if (entity != null) found.put(id, type.cast(entity));
+            }
+        }
+        
+        LOG.trace("Resolved {} of {} {} without a query", new Object[] {
+            distinct.size() - missing.size(), distinct.size(), metadata.getEntityName()
+        });
+        
+        final String property = persister.getIdentifierPropertyName();
+        if (property == null || persister.getIdentifierType().isComponentType()) {
+            // composite ids can't be used in in lists
+            for (Serializable id : missing) {
+                final Object entity = session.get(type, id);
+                if (entity != null) found.put(id, type.cast(entity));
+            }
+        } else {
+            for (List<Serializable> chunk : Lists.partition(missing, chunkSize)) {
+                final List<?> rows = session.createCriteria(type).add(Restrictions.in(property, pad(chunk))).list();
+                // joined collections may duplicate rows
+                for (Object row : rows) {
+                    final T entity = type.cast(row);
+                    found.put(session.getIdentifier(entity), entity);
+                }
+            }
+        }
+        
+        final Map<Serializable, T> result = Maps.newLinkedHashMap();
+        for (Serializable id : distinct) {
+            final T entity = found.get(id);
+            if (entity != null) result.put(id, entity);
+        }
+        return result;
+    }
+    
+    private static boolean isCached(SessionImplementor session, EntityPersister persister, Serializable id) {
+        if (!persister.hasCache() || !session.getCacheMode().isGetEnabled()) return false;
+        final CacheKey key = new CacheKey(id, persister.getIdentifierType(), persister.getRootEntityName(), 
+            session.getEntityMode(), session.getFactory());
+        return persister.getCacheAccessStrategy().get(key, session.getTimestamp()) != null;
+    }
+    
+    private List<Serializable> pad(List<Serializable> chunk) {
+        final int size = chunk.size() <= 1 ? chunk.size() : Math.min(
+            Integer.highestOneBit(chunk.size() - 1) << 1, chunkSize);
+        if (size == chunk.size()) return chunk;
+        final List<Serializable> padded = Lists.newArrayListWithCapacity(size);
+        padded.addAll(chunk);
+        final Serializable last = chunk.get(chunk.size() - 1);
+        while (padded.size() < size) {
+            padded.add(last);
+        }
+        return padded;
+    }
+    
+}
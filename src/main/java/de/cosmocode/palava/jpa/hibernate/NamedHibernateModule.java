@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.lang.annotation.Annotation;
+
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Binder;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import de.cosmocode.palava.ipc.IpcConnectionScoped;
+
+/**
+ * Binds an independently configured {@link HibernateService}, its {@link Session}s
+ * and {@link StatelessSession}s using the given binding annotation. Configuration keys
+ * are looked up using the given prefix instead of {@code hibernate}, e.g.
+ * {@code shard1.cfg} and {@code shard1.schema}. The prefix also serves as jmx name
+ * and as namespace of registry listeners, e.g. {@code shard1.post-commit-insert}.
+ * Several of these modules can be installed into one injector.
+ *
+ * @author Willi Schoenborn
+ */
+public final class NamedHibernateModule implements Module {
+
+    private final Class<? extends Annotation> annotation;
+    
+    private final String prefix;
+    
+    public NamedHibernateModule(Class<? extends Annotation> annotation, String prefix) {
+        this.annotation = Preconditions.checkNotNull(annotation, "Annotation");
+        this.prefix = Preconditions.checkNotNull(prefix, "Prefix");
+    }
+
+    @Override
+    public void configure(Binder binder) {
+        final Key<HibernateService> key = Key.get(HibernateService.class, annotation);
+        binder.bind(key).toProvider(new NamedHibernateServiceProvider(annotation, prefix)).in(Singleton.class);
+        
+        final Provider<HibernateService> service = binder.getProvider(key);
+        binder.bind(Session.class).annotatedWith(annotation).toProvider(
+            new SessionProvider(service)).in(IpcConnectionScoped.class);
+        binder.bind(StatelessSession.class).annotatedWith(annotation).toProvider(
+            new StatelessProvider(service)).in(IpcConnectionScoped.class);
+    }
+    
+    /**
+     * Provides {@link Session}s of a named {@link HibernateService}.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class SessionProvider implements Provider<Session> {
+        
+        private final Provider<HibernateService> service;
+        
+        public SessionProvider(Provider<HibernateService> service) {
+            this.service = service;
+        }
+        
+        @Override
+        public Session get() {
+            return service.get().get();
+        }
+        
+    }
+    
+    /**
+     * Provides {@link StatelessSession}s of a named {@link HibernateService}.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class StatelessProvider implements Provider<StatelessSession> {
+        
+        private final Provider<HibernateService> service;
+        
+        public StatelessProvider(Provider<HibernateService> service) {
+            this.service = service;
+        }
+        
+        @Override
+        public StatelessSession get() {
+            return service.get().getStatelessSession();
+        }
+        
+    }
+    
+}
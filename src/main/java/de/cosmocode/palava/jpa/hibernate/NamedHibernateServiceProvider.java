@@ -0,0 +1,138 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+
+import org.hibernate.Interceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.jmx.MBeanService;
+
+/**
+ * Creates and manages a {@link DefaultHibernateService} which is configured
+ * using prefixed keys, e.g. {@code shard1.cfg} instead of {@code hibernate.cfg}.
+ * Every optional setting of {@link DefaultHibernateService} is supported. The jmx name
+ * and the events namespace default to the prefix. An {@link Interceptor} is 
+ * looked up using the binding annotation.
+ *
+ * @author Willi Schoenborn
+ */
+final class NamedHibernateServiceProvider implements Provider<HibernateService>, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NamedHibernateServiceProvider.class);
+    
+    private static final String DEFAULT_PREFIX = "hibernate";
+    
+    private final Class<? extends Annotation> annotation;
+    
+    private final String prefix;
+    
+    private DefaultHibernateService service;
+    
+    public NamedHibernateServiceProvider(Class<? extends Annotation> annotation, String prefix) {
+        this.annotation = Preconditions.checkNotNull(annotation, "Annotation");
+        this.prefix = Preconditions.checkNotNull(prefix, "Prefix");
+    }
+    
+    @Inject
+    void configure(Injector injector, Registry registry, MBeanService mBeanService) {
+        final File config = injector.getInstance(Key.get(File.class, Names.named(prefix + ".cfg")));
+        final URL schema = injector.getInstance(Key.get(URL.class, Names.named(prefix + ".schema")));
+        service = new DefaultHibernateService(config, schema, registry, mBeanService);
+        
+        service.setName(prefix);
+        service.setNamespace(prefix);
+        
+        final Key<Interceptor> interceptor = Key.get(Interceptor.class, annotation);
+        if (exists(injector, interceptor)) {
+            service.setInterceptor(injector.getInstance(interceptor));
+        }
+        
+        for (Method method : DefaultHibernateService.class.getDeclaredMethods()) {
+            final Inject inject = method.getAnnotation(Inject.class);
+            if (inject == null || !inject.optional()) continue;
+            if (method.getParameterTypes().length != 1) continue;
+            final Named named = named(method.getParameterAnnotations()[0]);
+            if (named == null || !named.value().startsWith(DEFAULT_PREFIX + ".")) continue;
+            
+            final String name = prefix + named.value().substring(DEFAULT_PREFIX.length());
+            final Key<?> key = Key.get(method.getGenericParameterTypes()[0], Names.named(name));
+            if (!exists(injector, key)) continue;
+            
+            LOG.debug("Configuring {} using {}", method.getName(), name);
+            try {
+                method.invoke(service, injector.getInstance(key));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+    
+    private static Named named(Annotation[] annotations) {
+        for (Annotation candidate : annotations) {
+            if (candidate instanceof Named) return Named.class.cast(candidate);
+        }
+        return null;
+    }
+    
+    private static boolean exists(Injector injector, Key<?> key) {
+        try {
+            injector.getBinding(key);
+            return true;
+        } catch (ConfigurationException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public void initialize() throws LifecycleException {
+        service.initialize();
+    }
+    
+    @Override
+    public HibernateService get() {
+        return service;
+    }
+    
+    @Override
+    public void dispose() throws LifecycleException {
+        service.dispose();
+    }
+    
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * Controls what an {@link AsyncEventDispatcher} does when its queue is full.
+ *
+ * @author Willi Schoenborn
+ */
+public enum OverflowPolicy {
+    
+    /**
+     * The committing thread waits until the queue has room. Interrupts are
+     * deferred until the event has been queued.
+     */
+    BLOCK,
+    
+    /**
+     * The event is dropped and counted.
+     */
+    DROP,
+    
+    /**
+     * The committing thread notifies the listeners itself. The event may
+     * overtake queued events of the same entity.
+     */
+    CALLER_RUNS;
+    
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.stat.SessionStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Tracks the size of the persistence context of every session at its checkpoints,
+ * using {@link Session#getStatistics()}. Sessions which exceed the watermark get reported,
+ * once until they drop below it again. If clearing is enabled, a session which exceeds
+ * the watermark at the boundary of a unit of work gets cleared instead, unless it is dirty.
+ * This bounds the first level cache of sessions living across many IPC calls.
+ *
+ * @author Willi Schoenborn
+ */
+final class PersistenceContextWatermark implements SessionListener, PersistenceContextWatermarkMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PersistenceContextWatermark.class);
+    
+    private final ConcurrentMap<Session, Observation> sessions = new MapMaker().weakKeys().makeMap();
+    
+    private final AtomicInteger maxEntities = new AtomicInteger();
+    
+    private final AtomicInteger maxCollections = new AtomicInteger();
+    
+    private final AtomicLong exceeded = new AtomicLong();
+    
+    private final AtomicLong cleared = new AtomicLong();
+    
+    private final AtomicLong dirty = new AtomicLong();
+    
+    private volatile int watermark;
+    
+    private volatile boolean clearing;
+    
+    public PersistenceContextWatermark(int watermark, boolean clearing) {
+        setWatermark(watermark);
+        this.clearing = clearing;
+    }
+    
+    /**
+     * The last observed size of a single session's persistence context.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Observation {
+        
+        private volatile int entities;
+        
+        private volatile int collections;
+        
+        // only accessed by the session's thread
+        private boolean reported;
+        
+    }
+    
+    @Override
+    public void opened(Session session) {
+        sessions.put(session, new Observation());
+    }
+    
+    @Override
+    public void checkpoint(Session session, boolean boundary) {
+        final Observation observation = sessions.get(session);
+        if (observation == null || !session.isOpen()) return;
+        
+        final SessionStatistics statistics = session.getStatistics();
+        final int entities = statistics.getEntityCount();
+        final int collections = statistics.getCollectionCount();
+        observation.entities = entities;
+        observation.collections = collections;
+        max(maxEntities, entities);
+        max(maxCollections, collections);
+        
+        final int limit = watermark;
+        if (entities <= limit) {
+            observation.reported = false;
+            return;
+        }
+        
+        if (boundary && clearing) {
+            if (session.isDirty()) {
+                dirty.incrementAndGet();
+                LOG.debug("Not clearing dirty session with {} entities", entities);
+            } else {
+                LOG.debug("Clearing session with {} entities and {} collections", entities, collections);
+                session.clear();
+                cleared.incrementAndGet();
+                observation.entities = 0;
+                observation.collections = 0;
+                observation.reported = false;
+                return;
+            }
+        }
+        
+        if (observation.reported) return;
+        observation.reported = true;
+        exceeded.incrementAndGet();
+        LOG.warn("Persistence context holds {} entities and {} collections, exceeding the watermark of {}", 
+            new Object[] {entities, collections, limit});
+    }
+    
+    private static void max(AtomicInteger max, int value) {
+        while (true) {
+            final int current = max.get();
+            if (value <= current || max.compareAndSet(current, value)) return;
+        }
+    }
+    
+    @Override
+    public void destroyed(Session session) {
+        sessions.remove(session);
+    }
+    
+    @Override
+    public int getWatermark() {
+        return watermark;
+    }
+    
+    @Override
+    public void setWatermark(int watermark) {
+        Preconditions.checkArgument(watermark > 0, "Watermark must be positive");
+        this.watermark = watermark;
+    }
+    
+    @Override
+    public boolean isClearing() {
+        return clearing;
+    }
+    
+    @Override
+    public void setClearing(boolean clearing) {
+        this.clearing = clearing;
+    }
+    
+    @Override
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    @Override
+    public long getEntityCount() {
+        long count = 0L;
+        for (Observation observation : sessions.values()) {
+            count += observation.entities;
+        }
+        return count;
+    }
+    
+    @Override
+    public long getCollectionCount() {
+        long count = 0L;
+        for (Observation observation : sessions.values()) {
+            count += observation.collections;
+        }
+        return count;
+    }
+    
+    @Override
+    public int getMaxEntityCount() {
+        return maxEntities.get();
+    }
+    
+    @Override
+    public int getMaxCollectionCount() {
+        return maxCollections.get();
+    }
+    
+    @Override
+    public long getExceededCount() {
+        return exceeded.get();
+    }
+    
+    @Override
+    public long getClearCount() {
+        return cleared.get();
+    }
+    
+    @Override
+    public long getDirtyCount() {
+        return dirty.get();
+    }
+    
+    @Override
+    public void clear() {
+        maxEntities.set(0);
+        maxCollections.set(0);
+        exceeded.set(0L);
+        cleared.set(0L);
+        dirty.set(0L);
+    }
+    
+}
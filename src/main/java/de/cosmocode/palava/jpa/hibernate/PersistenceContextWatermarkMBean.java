@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link PersistenceContextWatermark}. Counts are observed at
+ * checkpoints, so they may lag behind the actual sizes of the persistence contexts.
+ *
+ * @author Willi Schoenborn
+ */
+public interface PersistenceContextWatermarkMBean {
+
+    /**
+     * Provides the number of managed entities per session above which the
+     * persistence context gets reported or cleared.
+     * 
+     * @return the watermark
+     */
+    int getWatermark();
+    
+    /**
+     * Changes the watermark.
+     * 
+     * @param watermark the new watermark
+     */
+    void setWatermark(int watermark);
+    
+    /**
+     * Checks whether non-dirty sessions get cleared once the watermark is exceeded.
+     * 
+     * @return true if sessions get cleared, false if they are only reported
+     */
+    boolean isClearing();
+    
+    /**
+     * Enables or disables clearing.
+     * 
+     * @param clearing true to clear sessions, false to only report them
+     */
+    void setClearing(boolean clearing);
+    
+    /**
+     * Provides the number of open sessions.
+     * 
+     * @return the number of sessions
+     */
+    int getSessionCount();
+    
+    /**
+     * Provides the number of managed entities, summed up over all open sessions.
+     * 
+     * @return the number of entities
+     */
+    long getEntityCount();
+    
+    /**
+     * Provides the number of managed collections, summed up over all open sessions.
+     * 
+     * @return the number of collections
+     */
+    long getCollectionCount();
+    
+    /**
+     * Provides the largest number of entities a single session has managed.
+     * 
+     * @return the maximum number of entities
+     */
+    int getMaxEntityCount();
+    
+    /**
+     * Provides the largest number of collections a single session has managed.
+     * 
+     * @return the maximum number of collections
+     */
+    int getMaxCollectionCount();
+    
+    /**
+     * Provides the number of times a session exceeded the watermark without
+     * being cleared.
+     * 
+     * @return the number of reported sessions
+     */
+    long getExceededCount();
+    
+    /**
+     * Provides the number of times a session got cleared.
+     * 
+     * @return the number of clears
+     */
+    long getClearCount();
+    
+    /**
+     * Provides the number of times a session could not be cleared because
+     * it contained unflushed changes.
+     * 
+     * @return the number of dirty sessions
+     */
+    long getDirtyCount();
+    
+    /**
+     * Resets all counters and maximums.
+     */
+    void clear();
+    
+}
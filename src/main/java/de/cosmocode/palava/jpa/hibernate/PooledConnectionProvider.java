@@ -0,0 +1,146 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.util.PropertiesHelper;
+import org.hibernate.util.ReflectHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ConnectionProvider} backed by a lock-free {@link ConnectionPool}.
+ * Enable it in the hibernate config using:
+ * <pre>
+ * hibernate.connection.provider_class = de.cosmocode.palava.jpa.hibernate.PooledConnectionProvider
+ * </pre>
+ * Connections are opened using the usual {@code hibernate.connection.*} properties,
+ * the pool size is taken from {@code hibernate.connection.pool_size}. Additionally 
+ * {@value #TIMEOUT}, {@value #VALIDATION_INTERVAL}, {@value #LEAK_THRESHOLD} and
+ * {@value #IDLE_TIMEOUT} can be configured in milliseconds. Metrics are published by
+ * the {@link DefaultHibernateService}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class PooledConnectionProvider implements ConnectionProvider {
+
+    public static final String TIMEOUT = "hibernate.connection.pool.timeout";
+    
+    public static final String VALIDATION_INTERVAL = "hibernate.connection.pool.validation_interval";
+    
+    public static final String LEAK_THRESHOLD = "hibernate.connection.pool.leak_threshold";
+    
+    public static final String IDLE_TIMEOUT = "hibernate.connection.pool.idle_timeout";
+    
+    private static final Logger LOG = LoggerFactory.getLogger(PooledConnectionProvider.class);
+    
+    private static final int DEFAULT_POOL_SIZE = 20;
+    
+    private static final int DEFAULT_TIMEOUT = 30000;
+    
+    private static final int DEFAULT_VALIDATION_INTERVAL = 1000;
+    
+    private static final int DEFAULT_IDLE_TIMEOUT = 600000;
+    
+    private ConnectionPool pool;
+    
+    @Override
+    public void configure(Properties properties) throws HibernateException {
+        final String driver = properties.getProperty(Environment.DRIVER);
+        if (driver == null) {
+            LOG.warn("No JDBC driver class specified using {}", Environment.DRIVER);
+        } else {
+            try {
+                ReflectHelper.classForName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new HibernateException("JDBC driver class not found: " + driver, e);
+            }
+        }
+        
+        final String url = properties.getProperty(Environment.URL);
+        if (url == null) {
+            throw new HibernateException("JDBC URL was not specified by property " + Environment.URL);
+        }
+        
+        final Properties connectionProperties = ConnectionProviderFactory.getConnectionProperties(properties);
+        final Integer isolation = PropertiesHelper.getInteger(Environment.ISOLATION, properties);
+        final boolean autoCommit = PropertiesHelper.getBoolean(Environment.AUTOCOMMIT, properties);
+        
+        final int maxSize = PropertiesHelper.getInt(Environment.POOL_SIZE, properties, DEFAULT_POOL_SIZE);
+        final int timeout = PropertiesHelper.getInt(TIMEOUT, properties, DEFAULT_TIMEOUT);
+        final int validationInterval = PropertiesHelper.getInt(VALIDATION_INTERVAL, properties, 
+            DEFAULT_VALIDATION_INTERVAL);
+        final int leakThreshold = PropertiesHelper.getInt(LEAK_THRESHOLD, properties, 0);
+        final int idleTimeout = PropertiesHelper.getInt(IDLE_TIMEOUT, properties, DEFAULT_IDLE_TIMEOUT);
+        
+        LOG.info("Pooling up to {} connections to {}", maxSize, url);
+        pool = new ConnectionPool(new ConnectionPool.Factory() {
+            
+            @Override
+            public Connection open() throws SQLException {
+                final Connection connection = DriverManager.getConnection(url, connectionProperties);
+                if (isolation != null) {
+                    connection.setTransactionIsolation(isolation.intValue());
+                }
+                if (connection.getAutoCommit() != autoCommit) {
+                    connection.setAutoCommit(autoCommit);
+                }
+                return connection;
+            }
+            
+        }, maxSize, timeout, validationInterval, leakThreshold, idleTimeout);
+    }
+    
+    /**
+     * Provides the underlying pool.
+     * 
+     * @return the pool
+     */
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return pool.borrow();
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        pool.release(connection);
+    }
+
+    @Override
+    public void close() throws HibernateException {
+        pool.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return false;
+    }
+
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.engine.RowSelection;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * A query result cache keyed by query string and parameters. Entries are invalidated 
+ * per query space, i.e. per table, by the post-commit events of the affected entity types.
+ * Unlike Hibernate's timestamp based query cache, a write only evicts the
+ * results which read from the written tables.
+ * <p>
+ * Writes of the current transaction are not committed yet, so queries over tables
+ * the current transaction has written to bypass the cache. Collection tables, bulk and
+ * native updates and writes of stateless sessions don't fire entity events, they are
+ * invalidated once their transaction commits. Writes which bypass Hibernate entirely,
+ * e.g. plain JDBC, are not noticed.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ */
+final class QueryResultCache implements QueryResultCacheMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryResultCache.class);
+    
+    private final BoundedCache results;
+    
+    private final ConcurrentMap<String, Set<Key>> index = new MapMaker().makeMap();
+    
+    private final ConcurrentMap<String, AtomicLong> generations = new MapMaker().makeMap();
+    
+    private final ConcurrentMap<Transaction, Writes> writes = new MapMaker().weakKeys().makeMap();
+    
+    private final StripedCounter bypasses = new StripedCounter();
+    
+    private final AtomicLong invalidations = new AtomicLong();
+    
+    private final ImmutableMap<String, Object> listeners;
+    
+    public QueryResultCache(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "Max size must be positive");
+        this.results = new BoundedCache("query-results", maxSize, 0L);
+        
+        final QueryResultCacheListener committed = new QueryResultCacheListener(this, true);
+        final QueryResultCacheListener flushed = new QueryResultCacheListener(this, false);
+        
+        final ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
+        builder.put("post-commit-insert", committed);
+        builder.put("post-commit-update", committed);
+        builder.put("post-commit-delete", committed);
+        builder.put("post-insert", flushed);
+        builder.put("post-update", flushed);
+        builder.put("post-delete", flushed);
+        builder.put("post-collection-recreate", flushed);
+        builder.put("post-collection-update", flushed);
+        builder.put("post-collection-remove", flushed);
+        this.listeners = builder.build();
+    }
+    
+    /**
+     * Provides the event listeners which have to be bound to the session factory.
+     * 
+     * @return all listeners keyed by event
+     */
+    public Map<String, Object> getListeners() {
+        return listeners;
+    }
+    
+    /**
+     * Provides the current invalidation stamp of the given spaces. A result may only be
+     * cached if the stamp did not change while it was read from the database.
+     * 
+     * @param spaces the query spaces
+     * @return the stamp
+     */
+    long stamp(Set<String> spaces) {
+        long stamp = 0L;
+        for (String space : spaces) {
+            stamp += generationOf(space).get();
+        }
+        return stamp;
+    }
+    
+    private AtomicLong generationOf(String space) {
+        final AtomicLong generation = generations.get(space);
+        if (generation != null) return generation;
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong previous = generations.putIfAbsent(space, created);
+        return previous == null ? created : previous;
+    }
+    
+    private Set<Key> keysOf(String space) {
+        final Set<Key> keys = index.get(space);
+        if (keys != null) return keys;
+        final Set<Key> created = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+        final Set<Key> previous = index.putIfAbsent(space, created);
+        return previous == null ? created : previous;
+    }
+    
+    /**
+     * Looks up the cached rows of the given query.
+     * 
+     * @param key the query key
+     * @return the disassembled rows or null if there is no cached result
+     */
+    Object[] get(Key key) {
+        return (Object[]) results.get(key);
+    }
+    
+    /**
+     * Caches the rows of the given query. The rows are dropped if one of the spaces
+     * got invalidated since stamp was taken.
+     * 
+     * @param key the query key
+     * @param spaces the query spaces
+     * @param stamp the stamp taken before the query was executed
+     * @param rows the disassembled rows
+     */
+    void put(Key key, Set<String> spaces, long stamp, Object[] rows) {
+        // entry first, index second, check last; see invalidate(String)
+        results.put(key, rows);
+        for (String space : spaces) {
+            final Set<Key> keys = keysOf(space);
+            keys.add(key);
+            if (keys.size() > 2 * results.getMaxSize()) {
+                prune(keys);
+            }
+        }
+        if (stamp(spaces) != stamp) {
+            results.remove(key);
+        }
+    }
+    
+    private void prune(Set<Key> keys) {
+        final Iterator<Key> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            if (!results.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Counts a cacheable query which had to bypass the cache.
+     */
+    void bypass() {
+        bypasses.increment();
+    }
+    
+    /**
+     * Invalidates all results which read from one of the given spaces.
+     * 
+     * @param spaces the query spaces
+     */
+    void invalidate(Serializable[] spaces) {
+        for (Serializable space : spaces) {
+            invalidate(space.toString());
+        }
+    }
+    
+    private void invalidate(String space) {
+        generationOf(space).incrementAndGet();
+        final Set<Key> keys = index.get(space);
+        if (keys == null) return;
+        final Iterator<Key> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            final Key key = iterator.next();
+            iterator.remove();
+            if (results.contains(key)) {
+                results.remove(key);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Checks whether the current transaction of the given session wrote to one of the given spaces.
+     * 
+     * @param session the session
+     * @param spaces the query spaces
+     * @return true if the session has uncommitted writes to one of the spaces
+     */
+    boolean isWritten(Session session, Set<String> spaces) {
+        if (writes.isEmpty()) return false;
+        final Writes current = writes.get(session.getTransaction());
+        return current != null && !Collections.disjoint(current.spaces, spaces);
+    }
+    
+    /**
+     * Records a write of the given session. Writes outside of a transaction invalidate
+     * the spaces immediately.
+     * 
+     * @param session the writing session
+     * @param spaces the written spaces
+     * @param invalidateOnCommit whether the spaces have to be invalidated once the
+     *        transaction commits, because there is no post-commit event for this write
+     */
+    void written(Session session, Serializable[] spaces, boolean invalidateOnCommit) {
+        written(session.getTransaction(), spaces, invalidateOnCommit);
+    }
+    
+    /**
+     * Records a write within the given transaction. Writes outside of a transaction invalidate
+     * the spaces immediately.
+     * 
+     * @param transaction the transaction of the writing session
+     * @param spaces the written spaces
+     * @param invalidateOnCommit whether the spaces have to be invalidated once the
+     *        transaction commits, because there is no post-commit event for this write
+     */
+    void written(Transaction transaction, Serializable[] spaces, boolean invalidateOnCommit) {
+        if (!transaction.isActive()) {
+            invalidate(spaces);
+            return;
+        }
+        Writes current = writes.get(transaction);
+        if (current == null) {
+            current = new Writes();
+            writes.put(transaction, current);
+            transaction.registerSynchronization(current);
+        }
+        for (Serializable space : spaces) {
+            current.spaces.add(space.toString());
+            if (invalidateOnCommit) {
+                current.committed.add(space.toString());
+            }
+        }
+    }
+    
+    /**
+     * Provides all query spaces of the given factory, i.e. every table an HQL query can read.
+     * 
+     * @param factory the session factory
+     * @return the tables of all entities and collections
+     */
+    static Serializable[] spacesOf(SessionFactoryImplementor factory) {
+        final Set<Serializable> spaces = Sets.newHashSet();
+        for (Object entityName : factory.getAllClassMetadata().keySet()) {
+            final EntityPersister persister = factory.getEntityPersister((String) entityName);
+            spaces.addAll(Arrays.asList(persister.getQuerySpaces()));
+        }
+        for (Object role : factory.getAllCollectionMetadata().keySet()) {
+            final CollectionPersister persister = factory.getCollectionPersister((String) role);
+            spaces.addAll(Arrays.asList(persister.getCollectionSpaces()));
+        }
+        return spaces.toArray(new Serializable[spaces.size()]);
+    }
+    
+    /**
+     * The spaces written by one transaction. Transactions are held weakly, so entries of 
+     * completed transactions are only emptied and vanish with their transaction.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class Writes implements Synchronization {
+        
+        private final Set<String> spaces = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        
+        private final Set<String> committed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        
+        @Override
+        public void beforeCompletion() {
+            
+        }
+        
+        @Override
+        public void afterCompletion(int status) {
+            if (status == Status.STATUS_COMMITTED) {
+                for (String space : committed) {
+                    invalidate(space);
+                }
+            }
+            spaces.clear();
+            committed.clear();
+        }
+        
+    }
+    
+    @Override
+    public long getSize() {
+        return results.getElementCountInMemory();
+    }
+    
+    @Override
+    public int getMaxSize() {
+        return results.getMaxSize();
+    }
+    
+    @Override
+    public long getHitCount() {
+        return results.getHitCount();
+    }
+    
+    @Override
+    public long getMissCount() {
+        return results.getMissCount();
+    }
+    
+    @Override
+    public long getBypassCount() {
+        return bypasses.sum();
+    }
+    
+    @Override
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+    
+    @Override
+    public void clear() {
+        LOG.info("Clearing query result cache");
+        for (String space : index.keySet()) {
+            invalidate(space);
+        }
+        results.clear();
+    }
+    
+    /**
+     * Identifies a query result by query string, parameters and row selection.
+     *
+     * @author Willi Schoenborn
+     */
+    static final class Key {
+        
+        private final String query;
+        
+        private final List<Object> values;
+        
+        private final Map<Object, Object> namedParameters;
+        
+        private final Map<Object, Object> namedParameterLists;
+        
+        private final Integer firstRow;
+        
+        private final Integer maxRows;
+        
+        private final int hash;
+        
+        public Key(String query, Object[] values, Map<?, ?> namedParameters, Map<?, ?> namedParameterLists,
+            RowSelection selection) {
+            this.query = Preconditions.checkNotNull(query, "Query");
+            this.values = Lists.newArrayList(Arrays.asList(values));
+            this.namedParameters = Maps.newHashMap(namedParameters);
+            this.namedParameterLists = Maps.newHashMap(namedParameterLists);
+            this.firstRow = selection.getFirstRow();
+            this.maxRows = selection.getMaxRows();
+            this.hash = Objects.hashCode(query, this.values, this.namedParameters, 
+                this.namedParameterLists, firstRow, maxRows);
+        }
+        
+        @Override
+        public boolean equals(Object that) {
+            if (this == that) {
+                return true;
+            } else if (that instanceof Key) {
+                final Key other = Key.class.cast(that);
+                return hash == other.hash && 
+                    query.equals(other.query) && 
+                    values.equals(other.values) && 
+                    namedParameters.equals(other.namedParameters) && 
+                    namedParameterLists.equals(other.namedParameterLists) && 
+                    Objects.equal(firstRow, other.firstRow) && 
+                    Objects.equal(maxRows, other.maxRows);
+            } else {
+                return false;
+            }
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public String toString() {
+            return query;
+        }
+        
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("QueryResultCache [size=%s, maxSize=%s]", getSize(), getMaxSize());
+    }
+    
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.event.AbstractCollectionEvent;
+import org.hibernate.event.EventSource;
+import org.hibernate.event.PostCollectionRecreateEvent;
+import org.hibernate.event.PostCollectionRecreateEventListener;
+import org.hibernate.event.PostCollectionRemoveEvent;
+import org.hibernate.event.PostCollectionRemoveEventListener;
+import org.hibernate.event.PostCollectionUpdateEvent;
+import org.hibernate.event.PostCollectionUpdateEventListener;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ObjectArrays;
+
+/**
+ * Feeds entity and collection write events into a {@link QueryResultCache}.
+ * Bound to the post-commit events, it invalidates the tables of the affected entity type.
+ * Bound to the flush time events, it records the uncommitted writes of the current transaction.
+ *
+ * @author Willi Schoenborn
+ */
+final class QueryResultCacheListener implements PostInsertEventListener, PostUpdateEventListener, 
+    PostDeleteEventListener, PostCollectionRecreateEventListener, PostCollectionUpdateEventListener, 
+    PostCollectionRemoveEventListener {
+
+    private static final long serialVersionUID = -2718360530497946170L;
+
+    private final QueryResultCache cache;
+    
+    private final boolean committed;
+    
+    /**
+     * Creates a new {@link QueryResultCacheListener}.
+     * 
+     * @param cache the cache
+     * @param committed true if bound to post-commit events, false if bound to flush time events
+     */
+    public QueryResultCacheListener(QueryResultCache cache, boolean committed) {
+        this.cache = Preconditions.checkNotNull(cache, "Cache");
+        this.committed = committed;
+    }
+    
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        changed(event.getSession(), event.getPersister().getQuerySpaces());
+    }
+    
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        changed(event.getSession(), event.getPersister().getQuerySpaces());
+    }
+    
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        changed(event.getSession(), event.getPersister().getQuerySpaces());
+    }
+    
+    private void changed(EventSource session, Serializable[] spaces) {
+        if (committed) {
+            cache.invalidate(spaces);
+        } else {
+            cache.written(session, spaces, false);
+        }
+    }
+    
+    @Override
+    public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+        changed(event);
+    }
+    
+    @Override
+    public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+        changed(event);
+    }
+    
+    @Override
+    public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+        changed(event);
+    }
+    
+    private void changed(AbstractCollectionEvent event) {
+        // there are no post-commit collection events
+        final SessionFactoryImplementor factory = event.getSession().getFactory();
+        Serializable[] spaces = factory.getEntityPersister(event.getAffectedOwnerEntityName()).getQuerySpaces();
+        final String role = event.getCollection().getRole();
+        if (role != null) {
+            spaces = ObjectArrays.concat(spaces, factory.getCollectionPersister(role).getCollectionSpaces(), 
+                Serializable.class);
+        }
+        cache.written(event.getSession(), spaces, true);
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link QueryResultCache}.
+ *
+ * @author Willi Schoenborn
+ */
+public interface QueryResultCacheMBean {
+
+    /**
+     * Provides the number of cached query results.
+     * 
+     * @return the number of entries
+     */
+    long getSize();
+    
+    /**
+     * Provides the maximum number of cached query results.
+     * 
+     * @return the maximum size
+     */
+    int getMaxSize();
+    
+    /**
+     * Provides the number of queries answered from the cache.
+     * 
+     * @return the number of hits
+     */
+    long getHitCount();
+    
+    /**
+     * Provides the number of cacheable queries which had to hit the database.
+     * 
+     * @return the number of misses
+     */
+    long getMissCount();
+    
+    /**
+     * Provides the number of cacheable queries which bypassed the cache, e.g. because
+     * the current transaction has written to one of the queried tables.
+     * 
+     * @return the number of bypasses
+     */
+    long getBypassCount();
+    
+    /**
+     * Provides the number of query results which were removed by an invalidation.
+     * 
+     * @return the number of invalidated entries
+     */
+    long getInvalidationCount();
+    
+    /**
+     * Removes all cached query results.
+     */
+    void clear();
+    
+}
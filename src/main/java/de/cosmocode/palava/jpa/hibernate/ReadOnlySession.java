@@ -0,0 +1,50 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.List;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Interceptor;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+/**
+ * A {@link DestroyableSession} which is opened in read-only mode with
+ * {@link FlushMode#MANUAL}. The JDBC connection is left untouched, connections
+ * are released and reused by other sessions after every transaction.
+ *
+ * @author Willi Schoenborn
+ */
+final class ReadOnlySession extends DestroyableSession {
+
+    private static final long serialVersionUID = 2839021765428811924L;
+
+    public ReadOnlySession(SessionFactory factory, Interceptor interceptor, 
+        List<? extends SessionListener> listeners) {
+        super(factory, interceptor, listeners);
+    }
+    
+    @Override
+    protected Session open() {
+        final Session session = super.open();
+        session.setDefaultReadOnly(true);
+        session.setFlushMode(FlushMode.MANUAL);
+        return session;
+    }
+    
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.Session;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+/**
+ * A {@link Provider} for {@link Replica} {@link Session}s which delegates
+ * to {@link HibernateService#getReplicaSession()}.
+ *
+ * @author Willi Schoenborn
+ */
+final class ReplicaSessionProvider implements Provider<Session> {
+
+    private final HibernateService service;
+    
+    @Inject
+    public ReplicaSessionProvider(HibernateService service) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+    }
+    
+    @Override
+    public Session get() {
+        return service.getReplicaSession();
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * The session factories a session can be routed to.
+ *
+ * @author Willi Schoenborn
+ */
+public enum Route {
+    
+    /**
+     * The primary session factory, which handles reads and writes.
+     */
+    PRIMARY,
+    
+    /**
+     * The replica session factory, which handles reads only. Falls back to
+     * {@link #PRIMARY} if no replica is configured.
+     */
+    REPLICA;
+    
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.CallbackException;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Interceptor;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.type.Type;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Low overhead statistics which are recorded for one out of n sessions
+ * using {@link StripedCounter}s. Sampled sessions are opened with
+ * {@link #getInterceptor()}, which counts and delegates to the configured
+ * {@link Interceptor}, if any. Sessions are counted once they are actually opened.
+ *
+ * @author Willi Schoenborn
+ */
+final class SampledStatistics implements SessionListener, SampledStatisticsMBean {
+
+    private final int sampleRate;
+    
+    private final AtomicLong sequence = new AtomicLong();
+    
+    private final Interceptor interceptor;
+    
+    private final StripedCounter sessions = new StripedCounter();
+    
+    private final StripedCounter loads = new StripedCounter();
+    
+    private final StripedCounter inserts = new StripedCounter();
+    
+    private final StripedCounter updates = new StripedCounter();
+    
+    private final StripedCounter deletes = new StripedCounter();
+    
+    private final StripedCounter collectionRecreates = new StripedCounter();
+    
+    private final StripedCounter collectionUpdates = new StripedCounter();
+    
+    private final StripedCounter collectionRemoves = new StripedCounter();
+    
+    private final StripedCounter flushes = new StripedCounter();
+    
+    private final StripedCounter statements = new StripedCounter();
+    
+    private final StripedCounter transactions = new StripedCounter();
+    
+    public SampledStatistics(int sampleRate, Interceptor interceptor) {
+        Preconditions.checkArgument(sampleRate > 0, "Sample rate must be positive");
+        this.sampleRate = sampleRate;
+        this.interceptor = new CountingInterceptor(interceptor == null ? EmptyInterceptor.INSTANCE : interceptor);
+    }
+    
+    /**
+     * Decides whether the next session should be sampled.
+     * 
+     * @return true if the next session should be opened using {@link #getInterceptor()}
+     */
+    public boolean sample() {
+        return sampleRate == 1 || sequence.getAndIncrement() % sampleRate == 0;
+    }
+    
+    /**
+     * Provides the counting interceptor for a new sampled session.
+     * 
+     * @return the interceptor
+     */
+    public Interceptor getInterceptor() {
+        return interceptor;
+    }
+    
+    @Override
+    public void opened(Session session) {
+        if (SessionImplementor.class.cast(session).getInterceptor() == interceptor) {
+            sessions.increment();
+        }
+    }
+    
+    @Override
+    public void checkpoint(Session session, boolean boundary) {
+        // nothing to do
+    }
+    
+    @Override
+    public void destroyed(Session session) {
+        // nothing to do
+    }
+    
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    @Override
+    public long getSessionCount() {
+        return sessions.sum();
+    }
+    
+    @Override
+    public long getEntityLoadCount() {
+        return loads.sum();
+    }
+    
+    @Override
+    public long getEntityInsertCount() {
+        return inserts.sum();
+    }
+    
+    @Override
+    public long getEntityUpdateCount() {
+        return updates.sum();
+    }
+    
+    @Override
+    public long getEntityDeleteCount() {
+        return deletes.sum();
+    }
+    
+    @Override
+    public long getCollectionRecreateCount() {
+        return collectionRecreates.sum();
+    }
+    
+    @Override
+    public long getCollectionUpdateCount() {
+        return collectionUpdates.sum();
+    }
+    
+    @Override
+    public long getCollectionRemoveCount() {
+        return collectionRemoves.sum();
+    }
+    
+    @Override
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+    
+    @Override
+    public long getPrepareStatementCount() {
+        return statements.sum();
+    }
+    
+    @Override
+    public long getTransactionCount() {
+        return transactions.sum();
+    }
+    
+    @Override
+    public void clear() {
+        sessions.reset();
+        loads.reset();
+        inserts.reset();
+        updates.reset();
+        deletes.reset();
+        collectionRecreates.reset();
+        collectionUpdates.reset();
+        collectionRemoves.reset();
+        flushes.reset();
+        statements.reset();
+        transactions.reset();
+    }
+    
+    /**
+     * Counts interceptor callbacks and delegates to the configured interceptor.
+     *
+     * @author Willi Schoenborn
+     */
+    private final class CountingInterceptor extends ForwardingInterceptor {
+
+        private static final long serialVersionUID = -5939106180315744870L;
+        
+        private final Interceptor interceptor;
+        
+        public CountingInterceptor(Interceptor interceptor) {
+            this.interceptor = interceptor;
+        }
+        
+        @Override
+        protected Interceptor delegate() {
+            return interceptor;
+        }
+        
+        @Override
+        public boolean onLoad(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+            throws CallbackException {
+            loads.increment();
+            return super.onLoad(entity, id, state, propertyNames, types);
+        }
+        
+        @Override
+        public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+            throws CallbackException {
+            inserts.increment();
+            return super.onSave(entity, id, state, propertyNames, types);
+        }
+        
+        @Override
+        public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, 
+            Object[] previousState, String[] propertyNames, Type[] types) throws CallbackException {
+            updates.increment();
+            return super.onFlushDirty(entity, id, currentState, previousState, propertyNames, types);
+        }
+        
+        @Override
+        public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types)
+            throws CallbackException {
+            deletes.increment();
+            super.onDelete(entity, id, state, propertyNames, types);
+        }
+        
+        @Override
+        public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException {
+            collectionRecreates.increment();
+            super.onCollectionRecreate(collection, key);
+        }
+        
+        @Override
+        public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException {
+            collectionUpdates.increment();
+            super.onCollectionUpdate(collection, key);
+        }
+        
+        @Override
+        public void onCollectionRemove(Object collection, Serializable key) throws CallbackException {
+            collectionRemoves.increment();
+            super.onCollectionRemove(collection, key);
+        }
+        
+        @Override
+        public void postFlush(@SuppressWarnings("rawtypes") Iterator entities) throws CallbackException {
+            flushes.increment();
+            super.postFlush(entities);
+        }
+        
+        @Override
+        public String onPrepareStatement(String sql) {
+            statements.increment();
+            return super.onPrepareStatement(sql);
+        }
+        
+        @Override
+        public void afterTransactionCompletion(Transaction tx) {
+            transactions.increment();
+            super.afterTransactionCompletion(tx);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link SampledStatistics}. All counts only cover
+ * sampled sessions, multiply them by the sample rate to estimate the totals.
+ *
+ * @author Willi Schoenborn
+ */
+public interface SampledStatisticsMBean {
+
+    /**
+     * Provides the sample rate.
+     * 
+     * @return n, if one out of n sessions is sampled
+     */
+    int getSampleRate();
+    
+    long getSessionCount();
+    
+    long getEntityLoadCount();
+    
+    long getEntityInsertCount();
+    
+    long getEntityUpdateCount();
+    
+    long getEntityDeleteCount();
+    
+    long getCollectionRecreateCount();
+    
+    long getCollectionUpdateCount();
+    
+    long getCollectionRemoveCount();
+    
+    long getFlushCount();
+    
+    long getPrepareStatementCount();
+    
+    long getTransactionCount();
+    
+    /**
+     * Resets all counters.
+     */
+    void clear();
+    
+}
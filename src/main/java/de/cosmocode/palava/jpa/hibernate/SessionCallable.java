@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.Session;
+
+/**
+ * A unit of read-only work which gets its own {@link Session}.
+ *
+ * @author Willi Schoenborn
+ * @param <T> the result type
+ * @see HibernateService#fanOut(java.util.List, long, java.util.concurrent.TimeUnit)
+ */
+public interface SessionCallable<T> {
+
+    /**
+     * Does the work. The session is closed afterwards, returned entities are detached.
+     * 
+     * @param session a read-only session, confined to the calling thread
+     * @return the result
+     * @throws Exception if the work fails
+     */
+    T call(Session session) throws Exception;
+    
+}
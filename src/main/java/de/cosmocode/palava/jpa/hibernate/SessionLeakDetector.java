@@ -0,0 +1,291 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Tracks every open session from its first use until {@link DestroyableSession#destroy()}.
+ * Sessions are opened lazily, so only sessions which were actually used, and may therefore
+ * hold a jdbc connection, are tracked. A housekeeper periodically scans the live sessions
+ * and reports every session which is held longer than the threshold, once, including the
+ * thread which opened it and, if enabled, its stack trace. Hold times of destroyed sessions
+ * are recorded in a histogram. The scan period follows the threshold. Sessions are held weakly,
+ * sessions which got garbage collected without being destroyed are reported as leaks as well.
+ *
+ * @author Willi Schoenborn
+ */
+final class SessionLeakDetector implements SessionListener, SessionLeakDetectorMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionLeakDetector.class);
+    
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private static final Comparator<Holder> OLDEST_FIRST = new Comparator<Holder>() {
+        
+        @Override
+        public int compare(Holder left, Holder right) {
+            final long difference = left.opened - right.opened;
+            return difference < 0L ? -1 : difference > 0L ? 1 : 0;
+        }
+        
+    };
+    
+    private final ConcurrentMap<Session, Holder> sessions = new MapMaker().weakKeys().makeMap();
+    
+    // holders have to stay reachable to be enqueued once their session got collected
+    private final Set<Holder> live = Collections.newSetFromMap(new ConcurrentHashMap<Holder, Boolean>());
+    
+    private final ReferenceQueue<Session> collected = new ReferenceQueue<Session>();
+    
+    private final LatencyHistogram holdTimes = new LatencyHistogram();
+    
+    private final StripedCounter leaks = new StripedCounter();
+    
+    private final ScheduledExecutorService housekeeper;
+    
+    private final Runnable scan = new Runnable() {
+        
+        @Override
+        public void run() {
+            scan();
+        }
+        
+    };
+    
+    private ScheduledFuture<?> scheduled;
+    
+    private volatile long threshold;
+    
+    private volatile boolean captureStacks;
+    
+    public SessionLeakDetector(long threshold, boolean captureStacks) {
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("session-leak-detector-%d").setDaemon(true).build()
+        );
+        setThreshold(threshold);
+        this.captureStacks = captureStacks;
+    }
+    
+    /**
+     * Creation time and origin of a single live session.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Holder extends WeakReference<Session> {
+        
+        private final long opened = System.nanoTime();
+        
+        private final String thread;
+        
+        private final Throwable stack;
+        
+        // only accessed by the housekeeper
+        private boolean reported;
+        
+        public Holder(Session session, ReferenceQueue<Session> queue, String thread, Throwable stack) {
+            super(session, queue);
+            this.thread = thread;
+            this.stack = stack;
+        }
+        
+    }
+    
+    @Override
+    public void opened(Session session) {
+        final Thread current = Thread.currentThread();
+        final Throwable stack = captureStacks ? new Throwable("Session opened by " + current.getName()) : null;
+        final Holder holder = new Holder(session, collected, current.getName(), stack);
+        live.add(holder);
+        sessions.put(session, holder);
+    }
+    
+    @Override
+    public void checkpoint(Session session, boolean boundary) {
+        // hold time is measured from opened to destroyed
+    }
+    
+    @Override
+    public void destroyed(Session session) {
+        final Holder holder = sessions.remove(session);
+        if (holder == null) return;
+        live.remove(holder);
+        holder.clear();
+        final long holdTime = System.nanoTime() - holder.opened;
+        holdTimes.record(holdTime);
+        if (holdTime > TimeUnit.MILLISECONDS.toNanos(threshold)) {
+            LOG.info("Session opened by {} destroyed after {}ms", holder.thread, 
+                TimeUnit.NANOSECONDS.toMillis(holdTime));
+        }
+    }
+    
+    private void scan() {
+        while (true) {
+            final Holder holder = (Holder) collected.poll();
+            if (holder == null) break;
+            if (!live.remove(holder)) continue;
+            if (!holder.reported) {
+                leaks.increment();
+            }
+            LOG.warn(String.format("Session opened by %s has been garbage collected without being destroyed", 
+                holder.thread), holder.stack);
+        }
+        
+        final long now = System.nanoTime();
+        final long limit = TimeUnit.MILLISECONDS.toNanos(threshold);
+        for (Holder holder : live) {
+            if (holder.reported || now - holder.opened <= limit) continue;
+            holder.reported = true;
+            leaks.increment();
+            // stack is null unless captured, which logs the plain message
+            LOG.warn(String.format("Session opened by %s held for more than %sms, possible leak", 
+                holder.thread, TimeUnit.NANOSECONDS.toMillis(limit)), holder.stack);
+        }
+    }
+    
+    @Override
+    public long getThreshold() {
+        return threshold;
+    }
+    
+    @Override
+    public void setThreshold(long threshold) {
+        Preconditions.checkArgument(threshold > 0, "Threshold must be positive");
+        this.threshold = threshold;
+        schedule(Math.max(1000L, Math.min(30000L, threshold / 2)));
+    }
+    
+    private synchronized void schedule(long period) {
+        if (housekeeper.isShutdown()) return;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = housekeeper.scheduleWithFixedDelay(scan, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public boolean isCaptureStacks() {
+        return captureStacks;
+    }
+    
+    @Override
+    public void setCaptureStacks(boolean captureStacks) {
+        this.captureStacks = captureStacks;
+    }
+    
+    @Override
+    public int getLiveCount() {
+        return live.size();
+    }
+    
+    @Override
+    public long getOldestHoldTime() {
+        final long now = System.nanoTime();
+        long oldest = 0L;
+        for (Holder holder : live) {
+            oldest = Math.max(oldest, now - holder.opened);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+    
+    @Override
+    public String[] getLeakedSessions() {
+        final long now = System.nanoTime();
+        final long limit = TimeUnit.MILLISECONDS.toNanos(threshold);
+        final List<Holder> leaked = Lists.newArrayList();
+        for (Holder holder : live) {
+            if (now - holder.opened > limit) {
+                leaked.add(holder);
+            }
+        }
+        Collections.sort(leaked, OLDEST_FIRST);
+        final String[] lines = new String[leaked.size()];
+        for (int i = 0; i < lines.length; i++) {
+            final Holder holder = leaked.get(i);
+            lines[i] = String.format(Locale.ENGLISH, "%s held=%dms", 
+                holder.thread, TimeUnit.NANOSECONDS.toMillis(now - holder.opened));
+        }
+        return lines;
+    }
+    
+    @Override
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+    
+    @Override
+    public long getHoldCount() {
+        return holdTimes.getCount();
+    }
+    
+    @Override
+    public double getHoldTimePercentile(double percentile) {
+        return holdTimes.getPercentile(percentile) / NANOS_PER_MILLI;
+    }
+    
+    @Override
+    public double getMaxHoldTime() {
+        return holdTimes.getMax() / NANOS_PER_MILLI;
+    }
+    
+    @Override
+    public String getHoldTimeSummary() {
+        return String.format(Locale.ENGLISH, 
+            "count=%d p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+            holdTimes.getCount(),
+            holdTimes.getPercentile(50.0) / NANOS_PER_MILLI,
+            holdTimes.getPercentile(90.0) / NANOS_PER_MILLI,
+            holdTimes.getPercentile(99.0) / NANOS_PER_MILLI,
+            holdTimes.getMax() / NANOS_PER_MILLI
+        );
+    }
+    
+    @Override
+    public void clear() {
+        leaks.reset();
+        holdTimes.reset();
+    }
+    
+    /**
+     * Stops the housekeeper.
+     */
+    public synchronized void close() {
+        housekeeper.shutdownNow();
+    }
+    
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link SessionLeakDetector}. Hold times are measured from opening
+ * the underlying session until its {@link DestroyableSession} gets destroyed.
+ *
+ * @author Willi Schoenborn
+ */
+public interface SessionLeakDetectorMBean {
+
+    /**
+     * Provides the hold time above which a live session gets reported.
+     * 
+     * @return the threshold in milliseconds
+     */
+    long getThreshold();
+    
+    /**
+     * Changes the threshold.
+     * 
+     * @param threshold the new threshold in milliseconds
+     */
+    void setThreshold(long threshold);
+    
+    /**
+     * Checks whether the stack trace of the opening thread gets captured.
+     * 
+     * @return true if stack traces are captured
+     */
+    boolean isCaptureStacks();
+    
+    /**
+     * Enables or disables capturing stack traces. Applies to sessions opened afterwards.
+     * 
+     * @param captureStacks true to capture stack traces
+     */
+    void setCaptureStacks(boolean captureStacks);
+    
+    /**
+     * Provides the number of open sessions.
+     * 
+     * @return the number of live sessions
+     */
+    int getLiveCount();
+    
+    /**
+     * Provides the hold time of the oldest open session.
+     * 
+     * @return the hold time in milliseconds, 0 if there are no open sessions
+     */
+    long getOldestHoldTime();
+    
+    /**
+     * Describes all open sessions which exceeded the threshold, oldest first.
+     * 
+     * @return one line per session
+     */
+    String[] getLeakedSessions();
+    
+    /**
+     * Provides the number of sessions which have been reported.
+     * 
+     * @return the number of leaks
+     */
+    long getLeakCount();
+    
+    /**
+     * Provides the number of destroyed sessions recorded in the hold time histogram.
+     * 
+     * @return the number of sessions
+     */
+    long getHoldCount();
+    
+    /**
+     * Estimates the hold time at the given percentile.
+     * 
+     * @param percentile the percentile, between 0 and 100
+     * @return the hold time in milliseconds
+     */
+    double getHoldTimePercentile(double percentile);
+    
+    /**
+     * Provides the longest hold time of a destroyed session.
+     * 
+     * @return the maximum hold time in milliseconds
+     */
+    double getMaxHoldTime();
+    
+    /**
+     * Summarizes the hold time histogram.
+     * 
+     * @return count, percentiles and maximum
+     */
+    String getHoldTimeSummary();
+    
+    /**
+     * Resets the leak count and the hold time histogram.
+     */
+    void clear();
+    
+}
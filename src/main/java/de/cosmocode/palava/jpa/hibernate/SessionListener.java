@@ -0,0 +1,54 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.Session;
+
+/**
+ * Callback for the lifecycle of the sessions opened by a {@link DestroyableSession}.
+ *
+ * @author Willi Schoenborn
+ */
+interface SessionListener {
+
+    /**
+     * Called after the underlying session has been opened.
+     * 
+     * @param session the underlying session
+     */
+    void opened(Session session);
+    
+    /**
+     * Called periodically while the session is in use and before a transaction
+     * gets started using {@link Session#beginTransaction()}. Only the latter
+     * is a boundary between units of work, unless a transaction is already active.
+     * 
+     * @param session the underlying session
+     * @param boundary true if no unit of work is in progress
+     */
+    void checkpoint(Session session, boolean boundary);
+    
+    /**
+     * Called before the underlying session gets closed. Not called
+     * if the session was never opened.
+     * 
+     * @param session the underlying session
+     */
+    void destroyed(Session session);
+    
+}
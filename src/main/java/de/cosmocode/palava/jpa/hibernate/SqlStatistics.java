@@ -0,0 +1,208 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Execution metrics of the statements timed by a {@link TimedConnectionProvider}.
+ * Executions below the threshold only bump two striped counters. Executions above
+ * the threshold are logged and ranked by SQL string.
+ *
+ * @author Willi Schoenborn
+ */
+final class SqlStatistics implements SqlStatisticsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SqlStatistics.class);
+    
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1L);
+    
+    private static final Comparator<Shape> SLOWEST_FIRST = new Comparator<Shape>() {
+        
+        @Override
+        public int compare(Shape left, Shape right) {
+            return left.max < right.max ? 1 : left.max > right.max ? -1 : 0;
+        }
+        
+    };
+    
+    private final StripedCounter executions = new StripedCounter();
+    
+    private final StripedCounter nanos = new StripedCounter();
+    
+    private final StripedCounter slow = new StripedCounter();
+    
+    private final int top;
+    
+    private volatile long threshold;
+    
+    private final Map<String, Shape> shapes = Maps.newHashMap();
+    
+    /**
+     * Creates a new {@link SqlStatistics}.
+     * 
+     * @param threshold the threshold in milliseconds
+     * @param top the number of ranked statements
+     */
+    public SqlStatistics(long threshold, int top) {
+        Preconditions.checkArgument(top > 0, "Top must be positive");
+        this.top = top;
+        setThreshold(threshold);
+    }
+    
+    /**
+     * Records an execution.
+     * 
+     * @param sql the executed sql
+     * @param parameters the number of bound parameters
+     * @param batch the number of batched executions, 0 if not batched
+     * @param elapsed the time spent executing and reading the results, in nanoseconds
+     */
+    void record(String sql, int parameters, int batch, long elapsed) {
+        executions.increment();
+        nanos.add(elapsed);
+        if (elapsed < threshold) return;
+        
+        slow.increment();
+        final long millis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+        if (batch > 0) {
+            LOG.warn("Slow SQL ({}ms, batch of {}, {} parameters): {}", new Object[] {
+                millis, batch, parameters, sql
+            });
+        } else {
+            LOG.warn("Slow SQL ({}ms, {} parameters): {}", new Object[] {
+                millis, parameters, sql
+            });
+        }
+        
+        final String key = sql == null ? "?" : sql;
+        synchronized (shapes) {
+            final Shape shape = shapes.get(key);
+            if (shape == null) {
+                final Shape created = new Shape(key);
+                created.record(elapsed);
+                shapes.put(key, created);
+                if (shapes.size() > top * 2) {
+                    shrink();
+                }
+            } else {
+                shape.record(elapsed);
+            }
+        }
+    }
+    
+    private void shrink() {
+        final List<Shape> ranked = Lists.newArrayList(shapes.values());
+        Collections.sort(ranked, SLOWEST_FIRST);
+        for (Shape shape : ranked.subList(top, ranked.size())) {
+            shapes.remove(shape.sql);
+        }
+    }
+    
+    /**
+     * Slow executions of a single SQL string.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Shape {
+        
+        private final String sql;
+        
+        private long count;
+        
+        private long total;
+        
+        private long max;
+        
+        public Shape(String sql) {
+            this.sql = sql;
+        }
+        
+        public void record(long elapsed) {
+            count++;
+            total += elapsed;
+            max = Math.max(max, elapsed);
+        }
+        
+    }
+    
+    @Override
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(threshold);
+    }
+    
+    @Override
+    public void setThreshold(long threshold) {
+        Preconditions.checkArgument(threshold >= 0, "Threshold must not be negative");
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    }
+    
+    @Override
+    public long getExecutionCount() {
+        return executions.sum();
+    }
+    
+    @Override
+    public long getExecutionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(nanos.sum());
+    }
+    
+    @Override
+    public long getSlowCount() {
+        return slow.sum();
+    }
+    
+    @Override
+    public String[] getSlowest() {
+        final List<String> lines = Lists.newArrayList();
+        synchronized (shapes) {
+            final List<Shape> ranked = Lists.newArrayList(shapes.values());
+            Collections.sort(ranked, SLOWEST_FIRST);
+            for (Shape shape : ranked.subList(0, Math.min(top, ranked.size()))) {
+                lines.add(String.format(Locale.ENGLISH, "max=%.3fms avg=%.3fms count=%d %s",
+                    shape.max / NANOS_PER_MILLI, shape.total / NANOS_PER_MILLI / shape.count, 
+                    shape.count, shape.sql
+                ));
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+    
+    @Override
+    public void clear() {
+        executions.reset();
+        nanos.reset();
+        slow.reset();
+        synchronized (shapes) {
+            shapes.clear();
+        }
+    }
+    
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link SqlStatistics}. Times are reported in milliseconds.
+ *
+ * @author Willi Schoenborn
+ */
+public interface SqlStatisticsMBean {
+
+    /**
+     * Provides the threshold above which statements are logged and ranked.
+     * 
+     * @return the threshold in milliseconds
+     */
+    long getThreshold();
+    
+    /**
+     * Changes the threshold.
+     * 
+     * @param threshold the new threshold in milliseconds
+     */
+    void setThreshold(long threshold);
+    
+    /**
+     * Provides the number of timed statement executions.
+     * 
+     * @return the number of executions
+     */
+    long getExecutionCount();
+    
+    /**
+     * Provides the total time spent executing statements and reading their results.
+     * 
+     * @return the total time in milliseconds
+     */
+    long getExecutionTime();
+    
+    /**
+     * Provides the number of executions above the threshold.
+     * 
+     * @return the number of slow executions
+     */
+    long getSlowCount();
+    
+    /**
+     * Ranks the slowest SQL statements by their maximum time, slowest first.
+     * Only executions above the threshold are ranked.
+     * 
+     * @return one line per statement
+     */
+    String[] getSlowest();
+    
+    /**
+     * Resets all counters and the ranking.
+     */
+    void clear();
+    
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * Keeps track of the startup of a {@link DefaultHibernateService}.
+ *
+ * @author Willi Schoenborn
+ */
+final class Startup implements StartupMBean {
+
+    private volatile boolean ready;
+    
+    private volatile long buildTime = -1L;
+    
+    private volatile long warmUpTime = -1L;
+    
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+    
+    void setReady(boolean ready) {
+        this.ready = ready;
+    }
+    
+    @Override
+    public long getBuildTime() {
+        return buildTime;
+    }
+    
+    void setBuildTime(long buildTime) {
+        this.buildTime = buildTime;
+    }
+    
+    @Override
+    public long getWarmUpTime() {
+        return warmUpTime;
+    }
+    
+    void setWarmUpTime(long warmUpTime) {
+        this.warmUpTime = warmUpTime;
+    }
+    
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+/**
+ * JMX interface of {@link Startup}.
+ *
+ * @author Willi Schoenborn
+ */
+public interface StartupMBean {
+
+    /**
+     * Checks whether the session factory has been built.
+     * 
+     * @return true if the session factory is ready to use, false otherwise
+     */
+    boolean isReady();
+    
+    /**
+     * Provides the time it took to configure and build the session factory.
+     * 
+     * @return the build time in milliseconds or -1 if the build did not finish yet
+     */
+    long getBuildTime();
+    
+    /**
+     * Provides the time it took to warm up the session factory.
+     * 
+     * @return the warm-up time in milliseconds or -1 if there was no warm-up (yet)
+     */
+    long getWarmUpTime();
+    
+}
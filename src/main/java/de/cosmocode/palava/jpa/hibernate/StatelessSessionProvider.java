@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import org.hibernate.StatelessSession;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+/**
+ * A {@link Provider} for {@link StatelessSession}s which delegates
+ * to {@link HibernateService#getStatelessSession()}.
+ *
+ * @author Willi Schoenborn
+ */
+final class StatelessSessionProvider implements Provider<StatelessSession> {
+
+    private final HibernateService service;
+    
+    @Inject
+    public StatelessSessionProvider(HibernateService service) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+    }
+    
+    @Override
+    public StatelessSession get() {
+        return service.getStatelessSession();
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * A forward-only iterator over {@link ScrollableResults}. Entities of a row are evicted from
+ * the session as soon as the next row is requested. Every fetch size rows, all other entities
+ * which entered the persistence context while streaming, e.g. through lazy associations,
+ * are evicted as well. Entities which were managed before streaming started are kept.
+ * <p>
+ * Evicted entities are detached, unflushed changes to them are lost. The underlying results
+ * are closed once the iterator is exhausted or {@link #close()} is called.
+ * </p>
+ *
+ * @author Willi Schoenborn
+ * @param <T> the row type, an entity, a scalar or an Object[] for tuples
+ */
+public final class StreamingResults<T> extends AbstractIterator<T> implements Closeable {
+
+    private final ScrollableResults results;
+    
+    private final Session session;
+    
+    private final PersistenceContext context;
+    
+    private final Set<Object> managed;
+    
+    private final int sweepInterval;
+    
+    private int rows;
+    
+    private Object[] previous;
+    
+    private boolean closed;
+    
+    StreamingResults(ScrollableResults results, Session session, int sweepInterval) {
+        this.results = Preconditions.checkNotNull(results, "Results");
+        this.session = ForwardingSession.unwrap(Preconditions.checkNotNull(session, "Session"));
+        Preconditions.checkArgument(sweepInterval > 0, "Sweep interval must be positive");
+        this.sweepInterval = sweepInterval;
+        this.context = SessionImplementor.class.cast(this.session).getPersistenceContext();
+        final Set<?> keys = context.getEntitiesByKey().keySet();
+        this.managed = ImmutableSet.<Object>copyOf(keys);
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    protected T computeNext() {
+        if (previous != null) {
+            evict(previous);
+            previous = null;
+        }
+        
+        if (closed || !results.next()) {
+            close();
+            return endOfData();
+        }
+        
+        if (++rows % sweepInterval == 0) {
+            sweep();
+        }
+        
+        previous = results.get();
+        return (T) (previous.length == 1 ? previous[0] : previous);
+    }
+    
+    private void evict(Object[] row) {
+        for (Object value : row) {
+            if (value == null) continue;
+            final EntityEntry entry = context.getEntry(value);
+            if (entry != null && !managed.contains(entry.getEntityKey())) {
+                session.evict(value);
+            }
+        }
+    }
+    
+    private void sweep() {
+        @SuppressWarnings("unchecked")
+        final Set<Entry<Object, Object>> entities = context.getEntitiesByKey().entrySet();
+        if (entities.size() <= managed.size()) return;
+        final List<Entry<Object, Object>> copy = Lists.newArrayList(entities);
+        for (Entry<Object, Object> entity : copy) {
+            if (!managed.contains(entity.getKey()) && session.contains(entity.getValue())) {
+                session.evict(entity.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Provides the number of rows read so far.
+     * 
+     * @return the number of rows
+     */
+    public int getRows() {
+        return rows;
+    }
+    
+    /**
+     * Closes the underlying results and evicts the last row. Further
+     * calls to {@link #hasNext()} return false.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (previous != null) {
+            evict(previous);
+            previous = null;
+        }
+        results.close();
+    }
+    
+}
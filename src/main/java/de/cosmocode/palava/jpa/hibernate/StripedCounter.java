@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter which spreads concurrent updates across several
+ * cache-line padded cells to avoid contention. Reading the sum is
+ * comparatively expensive and not atomic.
+ *
+ * @author Willi Schoenborn
+ */
+final class StripedCounter {
+
+    private static final int STRIPES;
+    
+    // 8 longs fill a 64 byte cache line
+    private static final int PADDING = 8;
+    
+    static {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        STRIPES = Integer.highestOneBit(Math.max(1, processors * 2 - 1)) << 1;
+    }
+    
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+    
+    /**
+     * Increments this counter by one.
+     */
+    public void increment() {
+        cells.getAndIncrement(index());
+    }
+    
+    /**
+     * Adds the given value to this counter.
+     * 
+     * @param value the value to add
+     */
+    public void add(long value) {
+        cells.getAndAdd(index(), value);
+    }
+    
+    /**
+     * Calculates the current sum of this counter.
+     * 
+     * @return the sum
+     */
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+    
+    /**
+     * Resets this counter to zero. Concurrent updates may get lost.
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0L);
+        }
+    }
+    
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return ((int) id & (STRIPES - 1)) * PADDING;
+    }
+    
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+    
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.connection.ConnectionProviderFactory;
+import org.hibernate.util.PropertiesHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ConnectionProvider} which times every statement execution, including the
+ * consumption of its result set, of the connections provided by another connection provider.
+ * Enable it in the hibernate config using:
+ * <pre>
+ * hibernate.connection.provider_class = de.cosmocode.palava.jpa.hibernate.TimedConnectionProvider
+ * </pre>
+ * The wrapped provider is configured using {@value #DELEGATE}. If it is missing,
+ * Hibernate's default selection applies. Statements slower than {@value #THRESHOLD} milliseconds
+ * are logged and the slowest {@value #TOP} statements are ranked. Metrics are published by
+ * the {@link DefaultHibernateService}.
+ *
+ * @author Willi Schoenborn
+ */
+public final class TimedConnectionProvider implements ConnectionProvider {
+    
+    public static final String DELEGATE = "hibernate.connection.timed.provider_class";
+    
+    public static final String THRESHOLD = "hibernate.connection.timed.threshold";
+    
+    public static final String TOP = "hibernate.connection.timed.top";
+    
+    private static final Logger LOG = LoggerFactory.getLogger(TimedConnectionProvider.class);
+
+    private static final int DEFAULT_THRESHOLD = 100;
+    
+    private static final int DEFAULT_TOP = 20;
+    
+    private ConnectionProvider provider;
+    
+    private SqlStatistics statistics;
+    
+    @Override
+    public void configure(Properties properties) throws HibernateException {
+        final Properties copy = new Properties();
+        copy.putAll(properties);
+        final String delegate = properties.getProperty(DELEGATE);
+        if (delegate == null) {
+            copy.remove(Environment.CONNECTION_PROVIDER);
+        } else {
+            copy.setProperty(Environment.CONNECTION_PROVIDER, delegate);
+        }
+        provider = ConnectionProviderFactory.newConnectionProvider(copy);
+        
+        final int threshold = PropertiesHelper.getInt(THRESHOLD, properties, DEFAULT_THRESHOLD);
+        final int top = PropertiesHelper.getInt(TOP, properties, DEFAULT_TOP);
+        LOG.info("Timing statements of {}, logging executions slower than {}ms", provider, threshold);
+        statistics = new SqlStatistics(threshold, top);
+    }
+    
+    /**
+     * Provides the statistics of all statements executed by connections of this provider.
+     * 
+     * @return the statistics
+     */
+    SqlStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Provides the wrapped connection provider.
+     * 
+     * @return the wrapped provider
+     */
+    ConnectionProvider getDelegate() {
+        return provider;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return TimedJdbc.wrap(provider.getConnection(), statistics);
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException {
+        provider.closeConnection(TimedJdbc.unwrap(connection));
+    }
+
+    @Override
+    public void close() throws HibernateException {
+        provider.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return provider.supportsAggressiveRelease();
+    }
+
+}
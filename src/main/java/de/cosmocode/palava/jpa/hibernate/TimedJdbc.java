@@ -0,0 +1,317 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Dynamic JDBC proxies which time statement executions and the consumption of their results.
+ * Proxies are used instead of decorators for connections and statements, because the JDBC
+ * interfaces grow with every Java release. Result sets are decorated using a
+ * {@link ForwardingResultSet} instead, their column getters are called for every row.
+ * An execution is finished once its result set or statement gets closed or the statement
+ * gets executed again.
+ *
+ * @author Willi Schoenborn
+ */
+final class TimedJdbc {
+
+    private TimedJdbc() {
+        
+    }
+    
+    /**
+     * Wraps the given connection.
+     * 
+     * @param connection the connection
+     * @param statistics the statistics to record executions in
+     * @return a timed proxy of connection
+     */
+    public static Connection wrap(Connection connection, SqlStatistics statistics) {
+        Preconditions.checkNotNull(connection, "Connection");
+        Preconditions.checkNotNull(statistics, "Statistics");
+        return proxy(Connection.class, new ConnectionHandler(connection, statistics));
+    }
+    
+    /**
+     * Removes the proxy of a connection created by {@link #wrap(Connection, SqlStatistics)}.
+     * 
+     * @param connection the connection, possibly a proxy
+     * @return the underlying connection
+     */
+    public static Connection unwrap(Connection connection) {
+        if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(connection);
+            if (handler instanceof ConnectionHandler) {
+                return ConnectionHandler.class.cast(handler).connection;
+            }
+        }
+        return connection;
+    }
+    
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TimedJdbc.class.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+    
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+    
+    /**
+     * Base class of all handlers. Proxies are compared by identity, Hibernate
+     * keeps statements and result sets in hash sets.
+     *
+     * @author Willi Schoenborn
+     */
+    private abstract static class Handler implements InvocationHandler {
+        
+        @Override
+        public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if ("equals".equals(name) && args != null && args.length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && args == null) {
+                return System.identityHashCode(proxy);
+            } else {
+                return handle(proxy, method, name, args);
+            }
+        }
+        
+        protected abstract Object handle(Object proxy, Method method, String name, Object[] args) throws Throwable;
+        
+    }
+    
+    /**
+     * Wraps all statements created by a connection.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class ConnectionHandler extends Handler {
+        
+        private final Connection connection;
+        
+        private final SqlStatistics statistics;
+        
+        public ConnectionHandler(Connection connection, SqlStatistics statistics) {
+            this.connection = connection;
+            this.statistics = statistics;
+        }
+        
+        @Override
+        protected Object handle(Object proxy, Method method, String name, Object[] args) throws Throwable {
+            final Object result = TimedJdbc.invoke(connection, method, args);
+            if (result instanceof Statement) {
+                final String sql = "createStatement".equals(name) ? null : (String) args[0];
+                final StatementHandler handler = new StatementHandler(
+                    (Connection) proxy, (Statement) result, sql, statistics);
+                if (result instanceof CallableStatement) {
+                    return proxy(CallableStatement.class, handler);
+                } else if (result instanceof PreparedStatement) {
+                    return proxy(PreparedStatement.class, handler);
+                } else {
+                    return proxy(Statement.class, handler);
+                }
+            } else {
+                return result;
+            }
+        }
+        
+    }
+    
+    /**
+     * Times executions of a statement and counts bound parameters and batches.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class StatementHandler extends Handler {
+        
+        private final Connection connection;
+        
+        private final Statement statement;
+        
+        private final String sql;
+        
+        private final SqlStatistics statistics;
+        
+        private int parameters;
+        
+        private int batch;
+        
+        private Execution current;
+        
+        public StatementHandler(Connection connection, Statement statement, String sql, SqlStatistics statistics) {
+            this.connection = connection;
+            this.statement = statement;
+            this.sql = sql;
+            this.statistics = statistics;
+        }
+        
+        @Override
+        protected Object handle(Object proxy, Method method, String name, Object[] args) throws Throwable {
+            if (name.startsWith("execute")) {
+                return execute(method, args);
+            } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                parameters = Math.max(parameters, (Integer) args[0]);
+            } else if ("clearParameters".equals(name)) {
+                parameters = 0;
+            } else if ("addBatch".equals(name)) {
+                batch++;
+            } else if ("clearBatch".equals(name)) {
+                batch = 0;
+            } else if ("getConnection".equals(name)) {
+                return connection;
+            } else if ("close".equals(name)) {
+                finish();
+            } else if ("getResultSet".equals(name) || "getGeneratedKeys".equals(name)) {
+                final Object result = TimedJdbc.invoke(statement, method, args);
+                return result == null || current == null ? result : current.wrap((ResultSet) result);
+            }
+            return TimedJdbc.invoke(statement, method, args);
+        }
+        
+        private Object execute(Method method, Object[] args) throws Throwable {
+            finish();
+            final String executed = args != null && args.length > 0 && args[0] instanceof String ? 
+                (String) args[0] : sql;
+            final Execution execution = new Execution(executed, parameters, batch, statistics);
+            batch = 0;
+            final long start = System.nanoTime();
+            try {
+                final Object result = TimedJdbc.invoke(statement, method, args);
+                if (result instanceof ResultSet) {
+                    execution.elapsed = System.nanoTime() - start;
+                    current = execution;
+                    return execution.wrap((ResultSet) result);
+                } else if (Boolean.TRUE.equals(result)) {
+                    // a result set is pending
+                    execution.elapsed = System.nanoTime() - start;
+                    current = execution;
+                    return result;
+                } else {
+                    execution.elapsed = System.nanoTime() - start;
+                    execution.finish();
+                    return result;
+                }
+            } catch (Throwable e) {
+                execution.elapsed = System.nanoTime() - start;
+                execution.finish();
+                throw e;
+            }
+        }
+        
+        private void finish() {
+            if (current == null) return;
+            current.finish();
+            current = null;
+        }
+        
+    }
+    
+    /**
+     * A single execution of a statement, including the consumption of its results.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class Execution {
+        
+        private final String sql;
+        
+        private final int parameters;
+        
+        private final int batch;
+        
+        private final SqlStatistics statistics;
+        
+        private long elapsed;
+        
+        private boolean finished;
+        
+        public Execution(String sql, int parameters, int batch, SqlStatistics statistics) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.batch = batch;
+            this.statistics = statistics;
+        }
+        
+        public ResultSet wrap(ResultSet resultSet) {
+            return new TimedResultSet(resultSet, this);
+        }
+        
+        public void finish() {
+            if (finished) return;
+            finished = true;
+            statistics.record(sql, parameters, batch, elapsed);
+        }
+        
+    }
+    
+    /**
+     * Adds the time spent moving the cursor of a result set to its execution.
+     *
+     * @author Willi Schoenborn
+     */
+    private static final class TimedResultSet extends ForwardingResultSet {
+        
+        private final ResultSet resultSet;
+        
+        private final Execution execution;
+        
+        public TimedResultSet(ResultSet resultSet, Execution execution) {
+            this.resultSet = resultSet;
+            this.execution = execution;
+        }
+        
+        @Override
+        protected ResultSet delegate() {
+            return resultSet;
+        }
+        
+        @Override
+        public boolean next() throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return super.next();
+            } finally {
+                execution.elapsed += System.nanoTime() - start;
+            }
+        }
+        
+        @Override
+        public void close() throws SQLException {
+            execution.finish();
+            super.close();
+        }
+        
+    }
+    
+}
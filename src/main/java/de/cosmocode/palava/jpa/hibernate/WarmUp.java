@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.query.QueryPlanCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Warms up a freshly built {@link SessionFactory}. Compiles the configured ad-hoc HQL
+ * queries into the query plan cache and touches every entity persister and proxy factory
+ * by loading a single row in a read-only session whose transaction is rolled back.
+ * Named queries are already compiled by the session factory itself.
+ * Failures are logged and otherwise ignored.
+ *
+ * @author Willi Schoenborn
+ */
+final class WarmUp {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+    
+    private final SessionFactoryImplementor factory;
+    
+    private final List<String> queries;
+    
+    public WarmUp(SessionFactory factory, List<String> queries) {
+        Preconditions.checkNotNull(factory, "Factory");
+        this.factory = SessionFactoryImplementor.class.cast(factory);
+        this.queries = ImmutableList.copyOf(queries);
+    }
+    
+    /**
+     * Runs the warm-up.
+     */
+    public void run() {
+        final QueryPlanCache cache = factory.getQueryPlanCache();
+        
+        for (String query : queries) {
+            LOG.debug("Compiling query {}", query);
+            compile(cache, query);
+        }
+        
+        for (Object entityName : factory.getAllClassMetadata().keySet()) {
+            touch(String.class.cast(entityName));
+        }
+    }
+    
+    private void compile(QueryPlanCache cache, String query) {
+        try {
+            cache.getHQLQueryPlan(query, false, Collections.EMPTY_MAP);
+        } catch (HibernateException e) {
+            LOG.warn("Unable to compile " + query, e);
+        }
+    }
+    
+    private void touch(String entityName) {
+        final Session session = factory.openSession();
+        try {
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            final Transaction transaction = session.beginTransaction();
+            try {
+                LOG.debug("Touching {}", entityName);
+                final Object entity = session.createCriteria(entityName).setMaxResults(1).uniqueResult();
+                if (entity != null) {
+                    final Serializable id = session.getIdentifier(entity);
+                    session.clear();
+                    // instantiates a proxy if the entity is lazy
+                    session.load(entityName, id);
+                }
+            } finally {
+                transaction.rollback();
+            }
+        } catch (HibernateException e) {
+            LOG.warn("Unable to touch " + entityName, e);
+        } finally {
+            session.close();
+        }
+    }
+    
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link ConnectionPool} against an in-memory H2 database.
+ *
+ * @author Willi Schoenborn
+ */
+public final class ConnectionPoolTest {
+
+    private static final String URL = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+    
+    private final AtomicInteger opened = new AtomicInteger();
+    
+    private ConnectionPool pool;
+    
+    /**
+     * Creates the test table.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Before
+    public void setUp() throws SQLException {
+        final Connection connection = DriverManager.getConnection(URL, "sa", "");
+        final Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE IF NOT EXISTS ITEM (ID INT PRIMARY KEY)");
+        statement.execute("DELETE FROM ITEM");
+        statement.close();
+        connection.close();
+    }
+    
+    /**
+     * Closes the pool.
+     */
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+    
+    private ConnectionPool pool(int maxSize, long timeout, long idleTimeout, final boolean autoCommit) {
+        pool = new ConnectionPool(new ConnectionPool.Factory() {
+            
+            @Override
+            public Connection open() throws SQLException {
+                opened.incrementAndGet();
+                final Connection connection = DriverManager.getConnection(URL, "sa", "");
+                connection.setAutoCommit(autoCommit);
+                return connection;
+            }
+            
+        }, maxSize, timeout, 0L, 0L, idleTimeout);
+        return pool;
+    }
+    
+    private static int count(Connection connection) throws SQLException {
+        final Statement statement = connection.createStatement();
+        final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM ITEM");
+        resultSet.next();
+        final int count = resultSet.getInt(1);
+        resultSet.close();
+        statement.close();
+        return count;
+    }
+    
+    private static void insert(Connection connection, int id) throws SQLException {
+        final Statement statement = connection.createStatement();
+        statement.executeUpdate("INSERT INTO ITEM (ID) VALUES (" + id + ")");
+        statement.close();
+    }
+    
+    /**
+     * Tests that many threads share few connections without errors or lost connections.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void contention() throws Exception {
+        final int threads = 16;
+        final int borrows = 500;
+        pool(2, 10000L, 0L, true);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                
+                @Override
+                public Void call() throws SQLException {
+                    for (int j = 0; j < borrows; j++) {
+                        final Connection connection = pool.borrow();
+                        count(connection);
+                        pool.release(connection);
+                    }
+                    return null;
+                }
+                
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assert.assertEquals(threads * borrows, pool.getBorrowCount());
+        Assert.assertEquals(0L, pool.getTimeoutCount());
+        Assert.assertEquals(0, pool.getActiveCount());
+        Assert.assertEquals(0, pool.getWaitingCount());
+        Assert.assertTrue(pool.getTotalCount() <= 2);
+        Assert.assertEquals(pool.getTotalCount(), opened.get());
+    }
+    
+    /**
+     * Tests that borrowing from an exhausted pool times out and a release makes room again.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void timeout() throws SQLException {
+        pool(1, 50L, 0L, true);
+        final Connection connection = pool.borrow();
+        final long start = System.nanoTime();
+        try {
+            pool.borrow();
+            Assert.fail("Expected a timeout");
+        } catch (SQLException e) {
+            Assert.assertTrue(System.nanoTime() - start >= 50000000L);
+        }
+        Assert.assertEquals(1L, pool.getTimeoutCount());
+        Assert.assertEquals(0, pool.getWaitingCount());
+        pool.release(connection);
+        Assert.assertSame(connection, pool.borrow());
+        Assert.assertEquals(1, opened.get());
+    }
+    
+    /**
+     * Tests that an open transaction is rolled back when its connection is returned.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void rollback() throws SQLException {
+        pool(1, 1000L, 0L, false);
+        final Connection connection = pool.borrow();
+        insert(connection, 1);
+        pool.release(connection);
+        
+        final Connection next = pool.borrow();
+        Assert.assertSame(connection, next);
+        Assert.assertEquals(0, count(next));
+        next.commit();
+        pool.release(next);
+        
+        final Connection other = DriverManager.getConnection(URL, "sa", "");
+        Assert.assertEquals(0, count(other));
+        other.close();
+    }
+    
+    /**
+     * Tests that changed settings are reset and pending work is rolled back before that.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void reset() throws SQLException {
+        pool(1, 1000L, 0L, true);
+        final Connection connection = pool.borrow();
+        connection.setAutoCommit(false);
+        insert(connection, 1);
+        pool.release(connection);
+        
+        final Connection next = pool.borrow();
+        Assert.assertSame(connection, next);
+        Assert.assertTrue(next.getAutoCommit());
+        Assert.assertEquals(0, count(next));
+        pool.release(next);
+    }
+    
+    /**
+     * Tests that a connection which can't be rolled back is discarded.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void discard() throws SQLException {
+        pool(1, 1000L, 0L, false);
+        final Connection connection = pool.borrow();
+        connection.close();
+        pool.release(connection);
+        Assert.assertEquals(0, pool.getTotalCount());
+        
+        final Connection next = pool.borrow();
+        Assert.assertNotSame(connection, next);
+        Assert.assertEquals(2, opened.get());
+        pool.release(next);
+    }
+    
+    /**
+     * Tests that idle connections are closed by the housekeeper.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void idle() throws Exception {
+        pool(2, 1000L, 100L, true);
+        final Connection first = pool.borrow();
+        final Connection second = pool.borrow();
+        pool.release(first);
+        pool.release(second);
+        Assert.assertEquals(2, pool.getIdleCount());
+        
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (pool.getTotalCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        Assert.assertEquals(0, pool.getTotalCount());
+        Assert.assertTrue(first.isClosed());
+        Assert.assertTrue(second.isClosed());
+        
+        pool.release(pool.borrow());
+        Assert.assertEquals(3, opened.get());
+    }
+    
+}
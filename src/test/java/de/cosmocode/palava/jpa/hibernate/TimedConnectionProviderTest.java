@@ -0,0 +1,147 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.jpa.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.hibernate.cfg.Environment;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TimedConnectionProvider} against an in-memory H2 database.
+ *
+ * @author Willi Schoenborn
+ */
+public final class TimedConnectionProviderTest {
+
+    private static final int THRESHOLD = 50;
+    
+    private TimedConnectionProvider provider;
+    
+    private Connection connection;
+    
+    /**
+     * Configures the provider and creates a sleep function.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Before
+    public void setUp() throws SQLException {
+        final Properties properties = new Properties();
+        properties.setProperty(Environment.DRIVER, "org.h2.Driver");
+        properties.setProperty(Environment.URL, "jdbc:h2:mem:timed;DB_CLOSE_DELAY=-1");
+        properties.setProperty(Environment.USER, "sa");
+        properties.setProperty(Environment.PASS, "");
+        properties.setProperty(TimedConnectionProvider.THRESHOLD, Integer.toString(THRESHOLD));
+        
+        provider = new TimedConnectionProvider();
+        provider.configure(properties);
+        connection = provider.getConnection();
+        
+        final Statement statement = connection.createStatement();
+        statement.execute("CREATE ALIAS IF NOT EXISTS SLEEP FOR \"java.lang.Thread.sleep\"");
+        statement.close();
+        provider.getStatistics().clear();
+    }
+    
+    /**
+     * Closes the connection and the provider.
+     * 
+     * @throws SQLException should not happen
+     */
+    @After
+    public void tearDown() throws SQLException {
+        provider.closeConnection(connection);
+        provider.close();
+    }
+    
+    private void query(String sql, long millis) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setLong(1, millis);
+        final ResultSet resultSet = statement.executeQuery();
+        while (resultSet.next()) {
+            resultSet.getObject(1);
+        }
+        resultSet.close();
+        statement.close();
+    }
+    
+    /**
+     * Tests that fast executions are only counted.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void fast() throws SQLException {
+        query("SELECT ? FROM DUAL", 1L);
+        final SqlStatistics statistics = provider.getStatistics();
+        Assert.assertEquals(1L, statistics.getExecutionCount());
+        Assert.assertEquals(0L, statistics.getSlowCount());
+        Assert.assertEquals(0, statistics.getSlowest().length);
+    }
+    
+    /**
+     * Tests that slow executions are logged and ranked.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void slow() throws SQLException {
+        query("SELECT ? FROM DUAL", 1L);
+        query("SELECT SLEEP(?) FROM DUAL", THRESHOLD * 2);
+        query("SELECT SLEEP(?) FROM DUAL", THRESHOLD * 2);
+        final SqlStatistics statistics = provider.getStatistics();
+        Assert.assertEquals(3L, statistics.getExecutionCount());
+        Assert.assertEquals(2L, statistics.getSlowCount());
+        Assert.assertTrue(statistics.getExecutionTime() >= THRESHOLD * 4);
+        final String[] slowest = statistics.getSlowest();
+        Assert.assertEquals(1, slowest.length);
+        Assert.assertTrue(slowest[0], slowest[0].startsWith("max="));
+        Assert.assertTrue(slowest[0], slowest[0].endsWith("count=2 SELECT SLEEP(?) FROM DUAL"));
+    }
+    
+    /**
+     * Tests that an execution is recorded once its result set is closed.
+     * 
+     * @throws SQLException should not happen
+     */
+    @Test
+    public void resultSet() throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement("SELECT X FROM SYSTEM_RANGE(1, ?)");
+        statement.setInt(1, 10);
+        final ResultSet resultSet = statement.executeQuery();
+        int rows = 0;
+        while (resultSet.next()) {
+            Assert.assertEquals(++rows, resultSet.getInt(1));
+        }
+        Assert.assertEquals(10, rows);
+        Assert.assertEquals(0L, provider.getStatistics().getExecutionCount());
+        resultSet.close();
+        Assert.assertEquals(1L, provider.getStatistics().getExecutionCount());
+        statement.close();
+        Assert.assertEquals(1L, provider.getStatistics().getExecutionCount());
+    }
+    
+}